@@ -0,0 +1,103 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import org.openintents.xmpp.IXmppPluginCallback;
+import org.openintents.xmpp.IXmppResultCallback;
+import org.openintents.xmpp.IXmppService;
+
+/**
+ * Wrappers copying every Intent through a Parcel on its way in and out, as a call to another process would, so
+ * in-process runs pay for marshalling too
+ *
+ * Binders and file descriptors are passed as they are, asBinder returns the wrapped binder so death links and
+ * callback routes still key on it.
+ */
+public final class BinderCopy {
+
+    private BinderCopy() {
+    }
+
+    public static Intent copy(final Intent intent) {
+        if (intent == null)
+            return null;
+        final Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Intent.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public static IXmppService wrap(final IXmppService service) {
+        return new IXmppService() {
+            @Override
+            public ParcelFileDescriptor createOutputPipe(final int pipeId) throws RemoteException {
+                return service.createOutputPipe(pipeId);
+            }
+
+            @Override
+            public Intent execute(final Intent data, final ParcelFileDescriptor input, final int pipeId) throws RemoteException {
+                return copy(service.execute(copy(data), input, pipeId));
+            }
+
+            @Override
+            public Intent callback(final Intent data, final IXmppPluginCallback callback) throws RemoteException {
+                return copy(service.callback(copy(data), wrap(callback)));
+            }
+
+            @Override
+            public void executeAsync(final long requestId, final Intent data, final ParcelFileDescriptor input,
+                                     final ParcelFileDescriptor output, final IXmppResultCallback callback) throws RemoteException {
+                service.executeAsync(requestId, copy(data), input, output, wrap(callback));
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return service.asBinder();
+            }
+        };
+    }
+
+    public static IXmppPluginCallback wrap(final IXmppPluginCallback callback) {
+        if (callback == null)
+            return null;
+        return new IXmppPluginCallback() {
+            @Override
+            public ParcelFileDescriptor createOutputPipe(final int pipeId) throws RemoteException {
+                return callback.createOutputPipe(pipeId);
+            }
+
+            @Override
+            public Intent execute(final Intent data, final ParcelFileDescriptor input, final int pipeId) throws RemoteException {
+                return copy(callback.execute(copy(data), input, pipeId));
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return callback.asBinder();
+            }
+        };
+    }
+
+    public static IXmppResultCallback wrap(final IXmppResultCallback callback) {
+        if (callback == null)
+            return null;
+        return new IXmppResultCallback() {
+            @Override
+            public void onResult(final long requestId, final Intent result) throws RemoteException {
+                callback.onResult(requestId, copy(result));
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return callback.asBinder();
+            }
+        };
+    }
+}
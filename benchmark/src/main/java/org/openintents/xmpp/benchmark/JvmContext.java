@@ -0,0 +1,55 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Context for benchmarks, there are no services to bind to, everything is called in process
+ */
+public class JvmContext extends Context {
+
+    public static final JvmContext INSTANCE = new JvmContext();
+
+    private final PackageManager packageManager = new PackageManager() {
+        @Override
+        public List<ResolveInfo> queryIntentServices(final Intent intent, final int flags) {
+            return Collections.emptyList();
+        }
+    };
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return JvmContext.class.getClassLoader();
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public boolean bindService(final Intent service, final ServiceConnection conn, final int flags) {
+        return false;
+    }
+
+    @Override
+    public void unbindService(final ServiceConnection conn) {
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return packageManager;
+    }
+
+    @Override
+    public Looper getMainLooper() {
+        return Looper.getMainLooper();
+    }
+}
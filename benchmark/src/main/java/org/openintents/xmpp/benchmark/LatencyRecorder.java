@@ -0,0 +1,97 @@
+package org.openintents.xmpp.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every latency sample up to a fixed capacity, so percentiles are exact rather than bucketed, samples beyond
+ * it are only counted
+ */
+public class LatencyRecorder {
+
+    private final long[] samples;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean recording = true;
+
+    public LatencyRecorder(final int capacity) {
+        samples = new long[capacity];
+    }
+
+    public void record(final long nanos) {
+        if (!recording)
+            return;
+        final int i = next.getAndIncrement();
+        if (i < samples.length)
+            samples[i] = nanos;
+    }
+
+    public void recordError() {
+        if (recording)
+            errors.incrementAndGet();
+    }
+
+    /**
+     * Ignore samples from now on, used to leave out what is still in flight after the measured period
+     */
+    public void stop() {
+        recording = false;
+    }
+
+    /**
+     * Forget everything recorded so far, used after the warmup
+     */
+    public void reset() {
+        next.set(0);
+        errors.set(0);
+        recording = true;
+    }
+
+    /**
+     * @return samples recorded so far, including those beyond capacity
+     */
+    public long getCount() {
+        return next.get();
+    }
+
+    public Snapshot snapshot() {
+        final int count = next.get();
+        final long[] sorted = Arrays.copyOf(samples, Math.min(count, samples.length));
+        Arrays.sort(sorted);
+        return new Snapshot(sorted, count, errors.get());
+    }
+
+    public static class Snapshot {
+        private final long[] sorted;
+        public final long count, errors;
+
+        Snapshot(final long[] sorted, final long count, final long errors) {
+            this.sorted = sorted;
+            this.count = count;
+            this.errors = errors;
+        }
+
+        /**
+         * @param quantile 0.5 for the median, 0.999 for p999
+         * @return nanoseconds, 0 without samples
+         */
+        public long getValueAt(final double quantile) {
+            if (sorted.length == 0)
+                return 0;
+            final int i = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+        }
+
+        public long getMax() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+
+        /**
+         * @return true if samples were dropped for lack of capacity, percentiles then only cover the first ones
+         */
+        public boolean isTruncated() {
+            return count > sorted.length;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import org.openintents.xmpp.IXmppService;
+import org.openintents.xmpp.InboundDispatcher;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives LoopbackXmppService through XmppServiceApi from several threads and reports latency percentiles and
+ * throughput of each scenario
+ *
+ * With a rate, sends are scheduled at fixed intervals and latency is measured from when a send was due rather than
+ * when it started, so a stalled call also counts against the calls queued up behind it. Without one, each thread
+ * sends again as soon as its previous call returned.
+ *
+ * Scenarios, run one after the other:
+ * execute   ACTION_SEND_RAW_XML of an iq the server does not answer
+ * message   ACTION_SEND_RAW_XML of a message, plus its echo arriving at a plugin as ACTION_NEW_MESSAGE
+ * callback  ACTION_REGISTER_PLUGIN_CALLBACK through callbackApi
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "usage: LoadGenerator [--scenarios execute,message,callback] [--rate <calls/s, 0 for as fast as possible>]\n"
+            + "                     [--threads <n>] [--duration <s>] [--warmup <s>] [--server-threads <n>]\n"
+            + "                     [--no-copy] [--queued] [--stats] [--json <file>]";
+
+    private static final int MAX_SAMPLES = 2 * 1000 * 1000;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private List<String> scenarios = Arrays.asList("execute", "message", "callback");
+    private int rate = 0;
+    private int threads = 4;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 3;
+    private int serverThreads = 2;
+    private boolean copy = true;
+    private boolean queued = false;
+    private boolean stats = false;
+    private String jsonFile;
+
+    private final List<Result> results = new ArrayList<Result>();
+
+    private static class Result {
+        final String name;
+        final LatencyRecorder.Snapshot snapshot;
+        final double seconds;
+
+        Result(final String name, final LatencyRecorder.Snapshot snapshot, final double seconds) {
+            this.name = name;
+            this.snapshot = snapshot;
+            this.seconds = seconds;
+        }
+
+        double getThroughput() {
+            return snapshot.count / seconds;
+        }
+    }
+
+    private interface Call {
+        /**
+         * @param due System.nanoTime the call was scheduled for
+         * @return true on success
+         */
+        boolean call(int thread, long sequence, long due);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(final String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            if ("--no-copy".equals(arg)) {
+                copy = false;
+            } else if ("--queued".equals(arg)) {
+                queued = true;
+            } else if ("--stats".equals(arg)) {
+                stats = true;
+            } else if (i + 1 < args.length) {
+                final String value = args[++i];
+                try {
+                    if ("--scenarios".equals(arg))
+                        scenarios = Arrays.asList(value.split(","));
+                    else if ("--rate".equals(arg))
+                        rate = Integer.parseInt(value);
+                    else if ("--threads".equals(arg))
+                        threads = Integer.parseInt(value);
+                    else if ("--duration".equals(arg))
+                        durationSeconds = Integer.parseInt(value);
+                    else if ("--warmup".equals(arg))
+                        warmupSeconds = Integer.parseInt(value);
+                    else if ("--server-threads".equals(arg))
+                        serverThreads = Integer.parseInt(value);
+                    else if ("--json".equals(arg))
+                        jsonFile = value;
+                    else
+                        throw new IllegalArgumentException("unknown option " + arg);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("not a number for " + arg + ": " + value);
+                }
+            } else {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+        }
+        if (rate < 0 || threads < 1 || durationSeconds < 1 || warmupSeconds < 0 || serverThreads < 1)
+            throw new IllegalArgumentException("rate must be >= 0, threads, duration and server-threads >= 1, warmup >= 0");
+    }
+
+    private void run() throws Exception {
+        final LoopbackXmppService service = new LoopbackXmppService(serverThreads);
+        final XmppServiceApi api = new XmppServiceApi(JvmContext.INSTANCE,
+                copy ? BinderCopy.wrap((IXmppService) service) : service);
+        final LoopbackPlugin plugin = new LoopbackPlugin(new LatencyRecorder(MAX_SAMPLES));
+        if (queued)
+            plugin.enableQueuedDispatch(1024, 2, InboundDispatcher.OverflowPolicy.BLOCK);
+
+        System.out.println(String.format(Locale.US, "rate %s, %d threads, %ds warmup, %ds measured, %d server threads, %s, %s",
+                rate == 0 ? "unbounded" : rate + "/s", threads, warmupSeconds, durationSeconds, serverThreads,
+                copy ? "Intents copied through Parcel" : "Intents passed by reference",
+                queued ? "queued plugin dispatch" : "plugin dispatch on the calling thread"));
+
+        for (final String scenario : scenarios) {
+            if ("execute".equals(scenario)) {
+                runScenario("execute", new Call() {
+                    @Override
+                    public boolean call(final int thread, final long sequence, final long due) {
+                        final Intent data = new Intent(XmppServiceApi.ACTION_SEND_RAW_XML);
+                        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, LoopbackXmppService.ACCOUNT_JID);
+                        data.putExtra(XmppServiceApi.EXTRA_RAW_XML, "<iq type='get' to='localhost' id='" + thread + '-' + sequence
+                                + "'><ping xmlns='urn:xmpp:ping'/></iq>");
+                        return isSuccess(api.executeApi(data, (InputStream) null, null));
+                    }
+                }, null);
+            } else if ("message".equals(scenario)) {
+                if (!isSuccess(api.callbackApi(registration(null), plugin)))
+                    throw new IllegalStateException("could not register the loopback plugin");
+                runScenario("message send", new Call() {
+                    @Override
+                    public boolean call(final int thread, final long sequence, final long due) {
+                        final Intent data = new Intent(XmppServiceApi.ACTION_SEND_RAW_XML);
+                        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, LoopbackXmppService.ACCOUNT_JID);
+                        data.putExtra(XmppServiceApi.EXTRA_RAW_XML, "<message to='peer" + thread + "@localhost' type='chat'><body>"
+                                + due + "</body></message>");
+                        return isSuccess(api.executeApi(data, (InputStream) null, null));
+                    }
+                }, plugin);
+                api.callbackApi(unregistration(), plugin);
+            } else if ("callback".equals(scenario)) {
+                runScenario("callback", new Call() {
+                    @Override
+                    public boolean call(final int thread, final long sequence, final long due) {
+                        // replaces the registration this thread made before, so routes do not pile up
+                        return isSuccess(api.callbackApi(registration("callback" + thread), plugin));
+                    }
+                }, null);
+                api.callbackApi(unregistration(), plugin);
+            } else {
+                throw new IllegalArgumentException("unknown scenario " + scenario);
+            }
+        }
+
+        if (service.getDeliveryErrors() > 0)
+            System.out.println(service.getDeliveryErrors() + " deliveries failed");
+        if (stats)
+            System.out.println(api.getStats());
+        if (jsonFile != null)
+            writeJson(jsonFile);
+        plugin.disableQueuedDispatch();
+        service.shutdown();
+    }
+
+    private static Intent registration(final String localPart) {
+        final Intent data = new Intent(XmppServiceApi.ACTION_REGISTER_PLUGIN_CALLBACK);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, LoopbackXmppService.ACCOUNT_JID);
+        if (localPart != null) {
+            data.putExtra(XmppServiceApi.EXTRA_JID_LOCAL_PART, localPart);
+            data.putExtra(XmppServiceApi.EXTRA_JID_DOMAIN, "localhost");
+        }
+        return data;
+    }
+
+    private static Intent unregistration() {
+        final Intent data = new Intent(XmppServiceApi.ACTION_UNREGISTER_PLUGIN_CALLBACK);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, LoopbackXmppService.ACCOUNT_JID);
+        return data;
+    }
+
+    private static boolean isSuccess(final Intent result) {
+        return result.getIntExtra(XmppPluginCallbackApi.RESULT_CODE, XmppPluginCallbackApi.RESULT_CODE_ERROR)
+                == XmppPluginCallbackApi.RESULT_CODE_SUCCESS;
+    }
+
+    /**
+     * @param echoes plugin receiving an echo for every successful call, null if the scenario has none
+     */
+    private void runScenario(final String name, final Call call, final LoopbackPlugin echoes)
+            throws InterruptedException {
+        final LatencyRecorder latency = new LatencyRecorder(MAX_SAMPLES);
+        // one interval per thread, threads start staggered so sends are spread evenly
+        final long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong sent = new AtomicLong();
+        if (echoes != null) {
+            echoes.getDelivery().reset();
+            echoes.setMeasureFrom(measureFrom);
+        }
+
+        for (int t = 0; t < threads; ++t) {
+            final int thread = t;
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long due = start + (interval * thread) / threads;
+                        for (long sequence = 0; ; ++sequence) {
+                            long now = System.nanoTime();
+                            if (interval == 0) {
+                                due = now;
+                            } else {
+                                while (now < due) {
+                                    LockSupport.parkNanos(due - now);
+                                    now = System.nanoTime();
+                                }
+                            }
+                            if (due >= end)
+                                break;
+                            final boolean success = call.call(thread, sequence, due);
+                            if (due >= measureFrom) {
+                                if (success) {
+                                    latency.record(System.nanoTime() - due);
+                                    sent.incrementAndGet();
+                                } else
+                                    latency.recordError();
+                            }
+                            due += interval;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load " + name + " " + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        done.await();
+        latency.stop();
+        final double seconds = durationSeconds;
+        results.add(report(name, latency.snapshot(), seconds));
+        if (echoes != null) {
+            final LatencyRecorder delivery = echoes.getDelivery();
+            // let the echoes still in flight arrive before looking at them
+            final long drainUntil = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (delivery.getCount() < sent.get() && System.nanoTime() < drainUntil)
+                Thread.sleep(10);
+            delivery.stop();
+            results.add(report(name.replace("send", "delivery"), delivery.snapshot(), seconds));
+        }
+    }
+
+    private static Result report(final String name, final LatencyRecorder.Snapshot snapshot, final double seconds) {
+        final Result result = new Result(name, snapshot, seconds);
+        System.out.println(String.format(Locale.US, "%-18s %10d calls %12.1f/s   p50 %9.1fus   p99 %9.1fus   p999 %9.1fus   max %9.1fus%s%s",
+                name, snapshot.count, result.getThroughput(),
+                snapshot.getValueAt(0.5) / 1000.0, snapshot.getValueAt(0.99) / 1000.0,
+                snapshot.getValueAt(0.999) / 1000.0, snapshot.getMax() / 1000.0,
+                snapshot.errors > 0 ? "   " + snapshot.errors + " errors" : "",
+                snapshot.isTruncated() ? "   (percentiles of the first " + MAX_SAMPLES + " calls)" : ""));
+        return result;
+    }
+
+    private void writeJson(final String file) throws IOException {
+        final Writer out = new FileWriter(file);
+        try {
+            out.write("{\"rate\":" + rate + ",\"threads\":" + threads + ",\"duration\":" + durationSeconds
+                    + ",\"copy\":" + copy + ",\"queued\":" + queued + ",\"results\":[");
+            for (int i = 0; i < results.size(); ++i) {
+                final Result r = results.get(i);
+                if (i > 0)
+                    out.write(',');
+                out.write(String.format(Locale.US,
+                        "{\"scenario\":\"%s\",\"count\":%d,\"errors\":%d,\"throughput\":%.1f,\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}",
+                        r.name, r.snapshot.count, r.snapshot.errors, r.getThroughput(), r.snapshot.getValueAt(0.5),
+                        r.snapshot.getValueAt(0.99), r.snapshot.getValueAt(0.999), r.snapshot.getMax()));
+            }
+            out.write("]}\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import org.openintents.xmpp.AbstractXmppPluginCallback;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.XmppMessage;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plugin recording how long each message echoed by LoopbackXmppService took to arrive, LoadGenerator puts the
+ * System.nanoTime its send was due at into the body
+ */
+public class LoopbackPlugin extends AbstractXmppPluginCallback {
+
+    private final LatencyRecorder delivery;
+    private volatile long measureFrom = Long.MIN_VALUE;
+
+    public LoopbackPlugin(final LatencyRecorder delivery) {
+        this.delivery = delivery;
+    }
+
+    public LatencyRecorder getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * Only record messages whose send was due at or after from, so echoes of warmup sends arriving late are left out
+     * @param from System.nanoTime
+     */
+    public void setMeasureFrom(final long from) {
+        measureFrom = from;
+    }
+
+    @Override
+    public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
+        if (!XmppPluginCallbackApi.ACTION_NEW_MESSAGE.equals(data.getAction()))
+            return XmppUtils.getError(XmppError.NOT_SUPPORTED, "unknown action " + data.getAction());
+        final XmppMessage message = XmppMessage.fromIntent(data);
+        final long sent;
+        try {
+            sent = Long.parseLong(message.getBody());
+        } catch (NumberFormatException e) {
+            return XmppUtils.getExceptionError(e);
+        }
+        if (sent - measureFrom >= 0)
+            delivery.record(System.nanoTime() - sent);
+        return XmppUtils.getSuccess();
+    }
+}
@@ -0,0 +1,160 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import org.openintents.xmpp.AbstractXmppService;
+import org.openintents.xmpp.IXmppPluginCallback;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.XmppMessage;
+import org.openintents.xmpp.util.Jid;
+import org.openintents.xmpp.util.StanzaReader;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provider with a single account connected to an in-memory server that echoes every message back, as if the peer
+ * it was sent to replied with the same body
+ *
+ * Echoes are delivered as ACTION_NEW_MESSAGE to the matching plugin callbacks from server threads, like stanzas
+ * arriving from the network would be.
+ */
+public class LoopbackXmppService extends AbstractXmppService {
+
+    public static final String ACCOUNT_JID = "loopback@localhost";
+
+    private static final String TAG = "LoopbackXmppService";
+
+    private final ExecutorService server;
+    private final AtomicInteger deliveryErrors = new AtomicInteger();
+
+    public LoopbackXmppService(final int serverThreads) {
+        server = Executors.newFixedThreadPool(serverThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "loopback server " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return number of ACTION_NEW_MESSAGE calls plugins answered with an error
+     */
+    public int getDeliveryErrors() {
+        return deliveryErrors.get();
+    }
+
+    public void shutdown() {
+        server.shutdown();
+    }
+
+    @Override
+    public Intent callback(final Intent data, final IXmppPluginCallback callback) {
+        final String action = data.getAction();
+        if (XmppServiceApi.ACTION_REGISTER_PLUGIN_CALLBACK.equals(action)) {
+            final XmppPluginCallbackApi api;
+            try {
+                api = XmppPluginCallbackApi.fromRegistration(JvmContext.INSTANCE, callback, data);
+            } catch (NullPointerException e) {
+                return XmppUtils.getError(XmppError.GENERIC_ERROR, e.getMessage());
+            }
+            if (!getPluginCallbackRouter().register(api))
+                return XmppUtils.getError(XmppError.REMOTE_DIED, "plugin callback already died");
+            return XmppUtils.getSuccess();
+        } else if (XmppServiceApi.ACTION_UNREGISTER_PLUGIN_CALLBACK.equals(action)) {
+            getPluginCallbackRouter().unregister(callback.asBinder(), data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID));
+            return XmppUtils.getSuccess();
+        }
+        return XmppUtils.getError(XmppError.NOT_SUPPORTED, "unknown action " + action);
+    }
+
+    @Override
+    public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
+        final String action = data.getAction();
+        if (XmppServiceApi.ACTION_CHECK_PERMISSION.equals(action)) {
+            return XmppUtils.getSuccess();
+        } else if (XmppServiceApi.ACTION_GET_ACCOUNT_JID.equals(action)) {
+            final Intent result = XmppUtils.getSuccess();
+            result.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, ACCOUNT_JID);
+            return result;
+        } else if (XmppServiceApi.ACTION_SEND_RAW_XML.equals(action)) {
+            return send(data.getStringExtra(XmppServiceApi.EXTRA_RAW_XML));
+        } else if (XmppServiceApi.ACTION_SEND_RAW_XML_BATCH.equals(action)) {
+            final String[] batch = data.getStringArrayExtra(XmppServiceApi.EXTRA_RAW_XML_BATCH);
+            if (batch == null)
+                return XmppUtils.getError(XmppError.GENERIC_ERROR, "missing " + XmppServiceApi.EXTRA_RAW_XML_BATCH);
+            final Intent[] results = new Intent[batch.length];
+            for (int i = 0; i < batch.length; ++i)
+                results[i] = send(batch[i]);
+            return XmppUtils.getBatchResult(results);
+        }
+        return XmppUtils.getError(XmppError.NOT_SUPPORTED, "unknown action " + action);
+    }
+
+    private Intent send(final String xml) {
+        if (xml == null)
+            return XmppUtils.getError(XmppError.GENERIC_ERROR, "missing " + XmppServiceApi.EXTRA_RAW_XML);
+        final String to, body;
+        try {
+            final StanzaReader reader = new StanzaReader(xml);
+            if (reader.next() != StanzaReader.START_ELEMENT)
+                return XmppUtils.getError(XmppError.GENERIC_ERROR, "no stanza");
+            if (!reader.isName("message"))
+                return XmppUtils.getSuccess(); // sent, nothing comes back
+            to = reader.getAttribute("to");
+            body = readBody(reader);
+        } catch (IOException e) {
+            return XmppUtils.getExceptionError(e);
+        }
+        if (to == null || body == null)
+            return XmppUtils.getSuccess();
+        server.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(new XmppMessage(ACCOUNT_JID, to, ACCOUNT_JID, body, 0));
+            }
+        });
+        return XmppUtils.getSuccess();
+    }
+
+    private static String readBody(final StanzaReader reader) throws IOException {
+        int event;
+        while ((event = reader.next()) != StanzaReader.END_DOCUMENT) {
+            if (event == StanzaReader.START_ELEMENT && reader.getDepth() == 2) {
+                if (!reader.isName("body")) {
+                    reader.skipElement();
+                    continue;
+                }
+                final StringBuilder body = new StringBuilder();
+                while ((event = reader.next()) == StanzaReader.TEXT)
+                    body.append(reader.getText());
+                return body.toString();
+            }
+        }
+        return null;
+    }
+
+    private void deliver(final XmppMessage message) {
+        for (final XmppPluginCallbackApi callback : getPluginCallbackRouter().lookup(ACCOUNT_JID, message.getFromJid())) {
+            final Intent result = callback.executeApi(message.toIntent(callback), (ParcelFileDescriptor) null, null);
+            if (result.getIntExtra(XmppPluginCallbackApi.RESULT_CODE, XmppPluginCallbackApi.RESULT_CODE_ERROR)
+                    != XmppPluginCallbackApi.RESULT_CODE_SUCCESS) {
+                deliveryErrors.incrementAndGet();
+                Log.w(TAG, "plugin failed to take message from " + message.getFrom());
+            }
+        }
+    }
+}
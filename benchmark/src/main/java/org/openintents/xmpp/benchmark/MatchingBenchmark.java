@@ -0,0 +1,94 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import org.openintents.xmpp.IXmppPluginCallback;
+import org.openintents.xmpp.util.Jid;
+import org.openintents.xmpp.util.PluginCallbackRouter;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the plugin callbacks an incoming message goes to, PluginCallbackRouter against calling matches on each
+ * registered callback
+ *
+ * Callbacks are spread over a few accounts and domains, with one in a hundred matching every peer of its account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+    private static final int ACCOUNTS = 4;
+    private static final int DOMAINS = 16;
+
+    @Param({"10", "1000", "10000"})
+    public int callbacks;
+
+    private final List<XmppPluginCallbackApi> registered = new ArrayList<XmppPluginCallbackApi>();
+    private final PluginCallbackRouter router = new PluginCallbackRouter();
+    private String account;
+    private Jid peer;
+
+    private static IXmppPluginCallback newPlugin() {
+        return new IXmppPluginCallback.Stub() {
+            @Override
+            public ParcelFileDescriptor createOutputPipe(final int pipeId) {
+                return null;
+            }
+
+            @Override
+            public Intent execute(final Intent data, final ParcelFileDescriptor input, final int pipeId) {
+                return null;
+            }
+        };
+    }
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < callbacks; ++i) {
+            final String accountJid = "user" + (i % ACCOUNTS) + "@example.org";
+            final String domain = "domain" + (i % DOMAINS) + ".example";
+            final XmppPluginCallbackApi callback = i % 100 == 99
+                    ? new XmppPluginCallbackApi(JvmContext.INSTANCE, newPlugin(), accountJid, null, null)
+                    : new XmppPluginCallbackApi(JvmContext.INSTANCE, newPlugin(), accountJid, "contact" + i, domain);
+            registered.add(callback);
+            router.register(callback, 0);
+        }
+        // a peer with its own callback, in the middle of the registration order
+        final int target = callbacks / 2;
+        account = "user" + (target % ACCOUNTS) + "@example.org";
+        peer = Jid.of("contact" + target + "@domain" + (target % DOMAINS) + ".example/phone");
+    }
+
+    @Benchmark
+    public List<XmppPluginCallbackApi> router() {
+        return router.lookup(account, peer);
+    }
+
+    @Benchmark
+    public List<XmppPluginCallbackApi> linearScan() {
+        final List<XmppPluginCallbackApi> found = new ArrayList<XmppPluginCallbackApi>();
+        for (int i = 0; i < registered.size(); ++i)
+            if (registered.get(i).matches(account, peer))
+                found.add(registered.get(i));
+        return found;
+    }
+}
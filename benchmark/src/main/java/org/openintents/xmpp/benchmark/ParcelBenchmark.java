@@ -0,0 +1,137 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import android.os.Parcel;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.XmppMessage;
+import org.openintents.xmpp.XmppMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading back the Parcelables and Intents crossing the binder for every call
+ *
+ * *Encode writes into a recycled Parcel, *RoundTrip also reads the result back, as the other process would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParcelBenchmark {
+
+    private static final String ACCOUNT = "alice@example.org";
+    private static final String PEER = "bob@example.org/phone";
+
+    private XmppError error;
+    private XmppMetadata metadata;
+    private XmppMessage message;
+    private Intent classicMessageIntent, compactMessageIntent;
+
+    @Setup
+    public void setup() {
+        error = new XmppError(XmppError.GENERIC_ERROR, "service-unavailable");
+        metadata = new XmppMetadata("avatar.png", "image/png", 1500000000000L, 32768, null);
+        message = new XmppMessage(ACCOUNT, PEER, ACCOUNT, "Are we still on for lunch tomorrow?", 0);
+        classicMessageIntent = message.toIntent(false);
+        compactMessageIntent = message.toIntent(true);
+    }
+
+    private static Parcel encode(final android.os.Parcelable p) {
+        final Parcel parcel = Parcel.obtain();
+        p.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    @Benchmark
+    public int errorEncode() {
+        final Parcel parcel = encode(error);
+        final int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+
+    @Benchmark
+    public XmppError errorRoundTrip() {
+        final Parcel parcel = encode(error);
+        final XmppError read = XmppError.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return read;
+    }
+
+    @Benchmark
+    public int metadataEncode() {
+        final Parcel parcel = encode(metadata);
+        final int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+
+    @Benchmark
+    public XmppMetadata metadataRoundTrip() {
+        final Parcel parcel = encode(metadata);
+        final XmppMetadata read = XmppMetadata.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return read;
+    }
+
+    @Benchmark
+    public int messageEncode() {
+        final Parcel parcel = encode(message);
+        final int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+
+    @Benchmark
+    public XmppMessage messageRoundTrip() {
+        final Parcel parcel = encode(message);
+        final XmppMessage read = XmppMessage.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        return read;
+    }
+
+    /**
+     * ACTION_NEW_MESSAGE as sent to plugins older than XmppMessage.MIN_API_VERSION, one extra per field
+     */
+    @Benchmark
+    public XmppMessage newMessageClassicRoundTrip() {
+        final Parcel parcel = encode(classicMessageIntent);
+        final XmppMessage read = XmppMessage.fromIntent(Intent.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+        return read;
+    }
+
+    /**
+     * ACTION_NEW_MESSAGE carrying a single EXTRA_MESSAGE
+     */
+    @Benchmark
+    public XmppMessage newMessageCompactRoundTrip() {
+        final Parcel parcel = encode(compactMessageIntent);
+        final XmppMessage read = XmppMessage.fromIntent(Intent.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+        return read;
+    }
+
+    @Benchmark
+    public Intent newMessageCompactBuild() {
+        return message.toIntent(true);
+    }
+
+    @Benchmark
+    public Intent newMessageClassicBuild() {
+        return message.toIntent(false);
+    }
+}
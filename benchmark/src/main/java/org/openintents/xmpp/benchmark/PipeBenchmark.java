@@ -0,0 +1,71 @@
+package org.openintents.xmpp.benchmark;
+
+import android.os.ParcelFileDescriptor;
+import org.openintents.xmpp.util.ParcelFileDescriptorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pumping a payload through pipeFrom and reading it back from the read side, what every execute call with an input
+ * stream does
+ *
+ * The pipes are named FIFOs rather than pipe(2), so absolute numbers include opening them, compare engines and
+ * sizes against each other rather than against a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipeBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"stream", "channel"})
+    public String engine;
+
+    private byte[] payload;
+    private final byte[] readBuffer = new byte[8192];
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        ParcelFileDescriptorUtil.setPumpEngine("channel".equals(engine)
+                ? ParcelFileDescriptorUtil.CHANNEL_ENGINE : ParcelFileDescriptorUtil.STREAM_ENGINE);
+    }
+
+    @Benchmark
+    public long pipeFrom() throws IOException {
+        final ParcelFileDescriptor readSide = ParcelFileDescriptorUtil.pipeFrom(new ByteArrayInputStream(payload));
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(readSide);
+        try {
+            long total = 0;
+            int len;
+            while ((len = in.read(readBuffer)) > 0)
+                total += len;
+            if (total != payloadSize)
+                throw new IOException("read " + total + " of " + payloadSize + " bytes");
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+}
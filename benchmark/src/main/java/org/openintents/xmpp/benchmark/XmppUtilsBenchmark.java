@@ -0,0 +1,98 @@
+package org.openintents.xmpp.benchmark;
+
+import android.content.Intent;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the result Intents every provider and plugin returns from execute
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmppUtilsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"1", "32"})
+        public int batchSize;
+
+        Intent[] results;
+        Intent combined;
+
+        @Setup
+        public void setup() {
+            results = new Intent[batchSize];
+            for (int i = 0; i < batchSize; ++i)
+                results[i] = i % 8 == 7 ? XmppUtils.getError(XmppError.GENERIC_ERROR, "not-acceptable") : XmppUtils.getSuccess();
+            combined = XmppUtils.getBatchResult(results);
+        }
+    }
+
+    private IOException exception;
+    private Intent withStacktrace;
+
+    @Setup
+    public void setup() {
+        exception = new IOException("connection reset");
+        withStacktrace = new Intent(XmppServiceApi.ACTION_SEND_RAW_XML);
+        withStacktrace.putExtra(XmppPluginCallbackApi.EXTRA_INCLUDE_STACKTRACE, true);
+    }
+
+    @Benchmark
+    public Intent success() {
+        return XmppUtils.getSuccess();
+    }
+
+    @Benchmark
+    public Intent error() {
+        return XmppUtils.getError(XmppError.GENERIC_ERROR, "service-unavailable");
+    }
+
+    @Benchmark
+    public Intent sharedError() {
+        return XmppUtils.getError(XmppError.ACCOUNT_OFFLINE);
+    }
+
+    @Benchmark
+    public Intent exceptionError() {
+        return XmppUtils.getExceptionError(exception);
+    }
+
+    /**
+     * Includes rendering the stack trace of the exception into the XmppError
+     */
+    @Benchmark
+    public Intent exceptionErrorWithStacktrace() {
+        return XmppUtils.getExceptionError(withStacktrace, exception);
+    }
+
+    @Benchmark
+    public Intent batchResult(final Batch batch) {
+        return XmppUtils.getBatchResult(batch.results);
+    }
+
+    @Benchmark
+    public XmppError[] batchErrors(final Batch batch) {
+        return XmppUtils.getBatchErrors(batch.combined);
+    }
+}
@@ -0,0 +1,19 @@
+package android.content;
+
+public class ComponentName {
+
+    private final String packageName, className;
+
+    public ComponentName(final String packageName, final String className) {
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+}
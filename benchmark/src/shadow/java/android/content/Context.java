@@ -0,0 +1,21 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.os.Looper;
+
+public abstract class Context {
+
+    public static final int BIND_AUTO_CREATE = 0x0001;
+
+    public abstract ClassLoader getClassLoader();
+
+    public abstract Context getApplicationContext();
+
+    public abstract boolean bindService(Intent service, ServiceConnection conn, int flags);
+
+    public abstract void unbindService(ServiceConnection conn);
+
+    public abstract PackageManager getPackageManager();
+
+    public abstract Looper getMainLooper();
+}
@@ -0,0 +1,248 @@
+package android.content;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+
+/**
+ * Action and extras only, extras kept in a Bundle created on first put, as on Android
+ */
+public class Intent implements Parcelable {
+
+    public static final String ACTION_VIEW = "android.intent.action.VIEW";
+
+    private String action;
+    private String packageName;
+    private Bundle extras;
+
+    public Intent() {
+    }
+
+    public Intent(final String action) {
+        this.action = action;
+    }
+
+    public Intent(final Intent o) {
+        this.action = o.action;
+        this.packageName = o.packageName;
+        if (o.extras != null)
+            this.extras = new Bundle(o.extras);
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public Intent setAction(final String action) {
+        this.action = action;
+        return this;
+    }
+
+    public String getPackage() {
+        return packageName;
+    }
+
+    public Intent setPackage(final String packageName) {
+        this.packageName = packageName;
+        return this;
+    }
+
+    private Intent put(final String name, final Object value) {
+        if (extras == null)
+            extras = new Bundle();
+        extras.put(name, value);
+        return this;
+    }
+
+    private Object get(final String name) {
+        return extras == null ? null : extras.get(name);
+    }
+
+    public Intent putExtra(final String name, final int value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final long value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final boolean value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final String value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final int[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final long[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final byte[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final String[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final Parcelable value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final Parcelable[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(final String name, final Bundle value) {
+        return put(name, value);
+    }
+
+    public Intent putParcelableArrayListExtra(final String name, final ArrayList<? extends Parcelable> value) {
+        return put(name, value == null ? null : value.toArray(new Parcelable[value.size()]));
+    }
+
+    public Intent putStringArrayListExtra(final String name, final ArrayList<String> value) {
+        return put(name, value == null ? null : value.toArray(new String[value.size()]));
+    }
+
+    public Intent putExtras(final Intent src) {
+        if (src.extras != null) {
+            if (extras == null)
+                extras = new Bundle();
+            extras.putAll(src.extras);
+        }
+        return this;
+    }
+
+    public Intent putExtras(final Bundle src) {
+        if (extras == null)
+            extras = new Bundle();
+        extras.putAll(src);
+        return this;
+    }
+
+    public boolean hasExtra(final String name) {
+        return extras != null && extras.containsKey(name);
+    }
+
+    public void removeExtra(final String name) {
+        if (extras != null)
+            extras.remove(name);
+    }
+
+    public Bundle getExtras() {
+        return extras == null ? null : new Bundle(extras);
+    }
+
+    public void setExtrasClassLoader(final ClassLoader loader) {
+        if (extras != null)
+            extras.setClassLoader(loader);
+    }
+
+    public int getIntExtra(final String name, final int defaultValue) {
+        final Object o = get(name);
+        return o instanceof Integer ? (Integer) o : defaultValue;
+    }
+
+    public long getLongExtra(final String name, final long defaultValue) {
+        final Object o = get(name);
+        return o instanceof Long ? (Long) o : defaultValue;
+    }
+
+    public boolean getBooleanExtra(final String name, final boolean defaultValue) {
+        final Object o = get(name);
+        return o instanceof Boolean ? (Boolean) o : defaultValue;
+    }
+
+    public String getStringExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof String ? (String) o : null;
+    }
+
+    public int[] getIntArrayExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof int[] ? (int[]) o : null;
+    }
+
+    public long[] getLongArrayExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof long[] ? (long[]) o : null;
+    }
+
+    public byte[] getByteArrayExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof byte[] ? (byte[]) o : null;
+    }
+
+    public String[] getStringArrayExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof String[] ? (String[]) o : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelableExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof Parcelable ? (T) o : null;
+    }
+
+    public Parcelable[] getParcelableArrayExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof Parcelable[] ? (Parcelable[]) o : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> ArrayList<T> getParcelableArrayListExtra(final String name) {
+        final Object o = get(name);
+        if (!(o instanceof Parcelable[]))
+            return null;
+        final ArrayList<T> list = new ArrayList<T>();
+        for (final Parcelable p : (Parcelable[]) o)
+            list.add((T) p);
+        return list;
+    }
+
+    public ArrayList<String> getStringArrayListExtra(final String name) {
+        final Object o = get(name);
+        if (!(o instanceof String[]))
+            return null;
+        final ArrayList<String> list = new ArrayList<String>();
+        for (final String s : (String[]) o)
+            list.add(s);
+        return list;
+    }
+
+    public Bundle getBundleExtra(final String name) {
+        final Object o = get(name);
+        return o instanceof Bundle ? (Bundle) o : null;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(action);
+        dest.writeString(packageName);
+        dest.writeBundle(extras);
+    }
+
+    public static final Creator<Intent> CREATOR = new Creator<Intent>() {
+        public Intent createFromParcel(final Parcel source) {
+            final Intent intent = new Intent(source.readString());
+            intent.packageName = source.readString();
+            intent.extras = source.readBundle(null);
+            return intent;
+        }
+
+        public Intent[] newArray(final int size) {
+            return new Intent[size];
+        }
+    };
+}
@@ -0,0 +1,9 @@
+package android.content.pm;
+
+import android.content.Intent;
+
+import java.util.List;
+
+public abstract class PackageManager {
+    public abstract List<ResolveInfo> queryIntentServices(Intent intent, int flags);
+}
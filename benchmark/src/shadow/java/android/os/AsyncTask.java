@@ -0,0 +1,57 @@
+package android.os;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * doInBackground runs on the given executor, onPostExecute on the main looper
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "AsyncTask");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(0, 128, 1, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), threadFactory);
+
+    public static final Executor SERIAL_EXECUTOR = Executors.newSingleThreadExecutor(threadFactory);
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPreExecute() {
+    }
+
+    protected void onPostExecute(final Result result) {
+    }
+
+    public final AsyncTask<Params, Progress, Result> execute(final Params... params) {
+        return executeOnExecutor(SERIAL_EXECUTOR, params);
+    }
+
+    public final AsyncTask<Params, Progress, Result> executeOnExecutor(final Executor exec, final Params... params) {
+        onPreExecute();
+        exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Result result = doInBackground(params);
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPostExecute(result);
+                    }
+                });
+            }
+        });
+        return this;
+    }
+}
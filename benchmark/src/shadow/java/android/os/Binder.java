@@ -0,0 +1,61 @@
+package android.os;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * In-process binder, calls are direct method calls as they are on Android when caller and service share a process,
+ * so the caller is always this process and a binder never dies
+ */
+public class Binder implements IBinder {
+
+    private IInterface owner;
+    private String descriptor;
+
+    public static int getCallingPid() {
+        return Process.myPid();
+    }
+
+    public static int getCallingUid() {
+        return Process.myUid();
+    }
+
+    public static long clearCallingIdentity() {
+        return 0;
+    }
+
+    public static void restoreCallingIdentity(final long token) {
+    }
+
+    public void attachInterface(final IInterface owner, final String descriptor) {
+        this.owner = owner;
+        this.descriptor = descriptor;
+    }
+
+    @Override
+    public IInterface queryLocalInterface(final String descriptor) {
+        return descriptor.equals(this.descriptor) ? owner : null;
+    }
+
+    @Override
+    public void linkToDeath(final DeathRecipient recipient, final int flags) {
+    }
+
+    @Override
+    public boolean unlinkToDeath(final DeathRecipient recipient, final int flags) {
+        return true;
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return true;
+    }
+
+    @Override
+    public boolean pingBinder() {
+        return true;
+    }
+
+    protected void dump(final FileDescriptor fd, final PrintWriter fout, final String[] args) {
+    }
+}
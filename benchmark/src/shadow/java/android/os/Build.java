@@ -0,0 +1,21 @@
+package android.os;
+
+public class Build {
+
+    public static class VERSION {
+        /**
+         * matches compileSdkVersion of xmpp-api, so the newest code paths are measured
+         */
+        public static final int SDK_INT = 25;
+    }
+
+    public static class VERSION_CODES {
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int HONEYCOMB_MR2 = 13;
+        public static final int JELLY_BEAN_MR1 = 17;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+    }
+}
@@ -0,0 +1,134 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parcels like the native Bundle, a length, a magic number, then every key with a type tag and its value, but
+ * unparcels right away instead of on first access
+ */
+public final class Bundle implements Parcelable {
+
+    private static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
+
+    private final HashMap<String, Object> map;
+    private ClassLoader classLoader;
+
+    public Bundle() {
+        map = new HashMap<String, Object>();
+    }
+
+    public Bundle(final Bundle b) {
+        map = new HashMap<String, Object>(b.map);
+        classLoader = b.classLoader;
+    }
+
+    Bundle(final Parcel source, final int length) {
+        final int start = source.dataPosition();
+        if (source.readInt() != BUNDLE_MAGIC)
+            throw new IllegalStateException("Bad magic number for Bundle");
+        final int count = source.readInt();
+        map = new HashMap<String, Object>(count * 2);
+        for (int i = 0; i < count; ++i) {
+            final String key = source.readString();
+            map.put(key, source.readValue(classLoader));
+        }
+        source.setDataPosition(start + length);
+    }
+
+    public void setClassLoader(final ClassLoader loader) {
+        classLoader = loader;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public boolean containsKey(final String key) {
+        return map.containsKey(key);
+    }
+
+    public Object get(final String key) {
+        return map.get(key);
+    }
+
+    public void remove(final String key) {
+        map.remove(key);
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public void putAll(final Bundle bundle) {
+        map.putAll(bundle.map);
+    }
+
+    /**
+     * Not part of the Android API, lets the Intent shadow share the typed setters without repeating them
+     */
+    public void put(final String key, final Object value) {
+        map.put(key, value);
+    }
+
+    Map<String, Object> getMap() {
+        return map;
+    }
+
+    public void putString(final String key, final String value) {
+        map.put(key, value);
+    }
+
+    public String getString(final String key) {
+        final Object o = map.get(key);
+        return o instanceof String ? (String) o : null;
+    }
+
+    public void putInt(final String key, final int value) {
+        map.put(key, value);
+    }
+
+    public int getInt(final String key, final int defaultValue) {
+        final Object o = map.get(key);
+        return o instanceof Integer ? (Integer) o : defaultValue;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(final Parcel dest, final int flags) {
+        final int lengthPosition = dest.dataPosition();
+        dest.writeInt(0);
+        final int start = dest.dataPosition();
+        dest.writeInt(BUNDLE_MAGIC);
+        dest.writeInt(map.size());
+        for (final Map.Entry<String, Object> e : map.entrySet()) {
+            dest.writeString(e.getKey());
+            dest.writeValue(e.getValue());
+        }
+        final int end = dest.dataPosition();
+        dest.setDataPosition(lengthPosition);
+        dest.writeInt(end - start);
+        dest.setDataPosition(end);
+    }
+
+    public static final Creator<Bundle> CREATOR = new Creator<Bundle>() {
+        public Bundle createFromParcel(final Parcel source) {
+            return source.readBundle(null);
+        }
+
+        public Bundle[] newArray(final int size) {
+            return new Bundle[size];
+        }
+    };
+}
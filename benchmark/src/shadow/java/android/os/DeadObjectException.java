@@ -0,0 +1,10 @@
+package android.os;
+
+public class DeadObjectException extends RemoteException {
+    public DeadObjectException() {
+    }
+
+    public DeadObjectException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,71 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class Handler {
+
+    private final Looper looper;
+    private final Map<Runnable, List<Future<?>>> delayed = new HashMap<Runnable, List<Future<?>>>();
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(final Looper looper) {
+        if (looper == null)
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        this.looper = looper;
+    }
+
+    public final boolean post(final Runnable r) {
+        try {
+            looper.executor.execute(r);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public final boolean postDelayed(final Runnable r, final long delayMillis) {
+        try {
+            final Future<?> f = looper.executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (delayed) {
+                        delayed.remove(r);
+                    }
+                    r.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            synchronized (delayed) {
+                List<Future<?>> futures = delayed.get(r);
+                if (futures == null)
+                    delayed.put(r, futures = new ArrayList<Future<?>>(1));
+                futures.add(f);
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public final void removeCallbacks(final Runnable r) {
+        final List<Future<?>> futures;
+        synchronized (delayed) {
+            futures = delayed.remove(r);
+        }
+        if (futures != null)
+            for (final Future<?> f : futures)
+                f.cancel(false);
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+public interface IBinder {
+
+    int FLAG_ONEWAY = 0x00000001;
+
+    interface DeathRecipient {
+        void binderDied();
+    }
+
+    IInterface queryLocalInterface(String descriptor);
+
+    void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException;
+
+    boolean unlinkToDeath(DeathRecipient recipient, int flags);
+
+    boolean isBinderAlive();
+
+    boolean pingBinder();
+}
@@ -0,0 +1,50 @@
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single daemon thread running posted tasks in order, the main looper is created on first use
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> current = new ThreadLocal<Looper>();
+    private static Looper mainLooper;
+
+    final ScheduledExecutorService executor;
+    private final String name;
+
+    private Looper(final String name) {
+        this.name = name;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        current.set(Looper.this);
+                        r.run();
+                    }
+                }, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (mainLooper == null)
+            mainLooper = new Looper("main");
+        return mainLooper;
+    }
+
+    public static Looper myLooper() {
+        return current.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Looper (" + name + ")";
+    }
+}
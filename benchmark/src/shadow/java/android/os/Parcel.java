@@ -0,0 +1,477 @@
+package android.os;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap backed Parcel laid out like the native one, little endian with every value padded to 4 bytes and strings as
+ * UTF-16 with a terminator, so sizes and copying work are comparable, binders and file descriptors are kept by
+ * reference since they never leave the process
+ */
+public final class Parcel {
+
+    private static final int POOL_SIZE = 6;
+    private static final Parcel[] pool = new Parcel[POOL_SIZE];
+
+    private static final Map<String, Parcelable.Creator<?>> creators = new ConcurrentHashMap<String, Parcelable.Creator<?>>();
+
+    // value types of writeValue, same numbers as the native Parcel
+    private static final int VAL_NULL = -1;
+    private static final int VAL_STRING = 0;
+    private static final int VAL_INTEGER = 1;
+    private static final int VAL_BUNDLE = 3;
+    private static final int VAL_PARCELABLE = 4;
+    private static final int VAL_LONG = 6;
+    private static final int VAL_BOOLEAN = 9;
+    private static final int VAL_IBINDER = 15;
+    private static final int VAL_STRINGARRAY = 14;
+    private static final int VAL_PARCELABLEARRAY = 16;
+    private static final int VAL_INTARRAY = 18;
+    private static final int VAL_LONGARRAY = 19;
+    private static final int VAL_BYTEARRAY = 13;
+
+    private byte[] data = new byte[256];
+    private int size, pos;
+    private final List<Object> objects = new ArrayList<Object>();
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        synchronized (pool) {
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                final Parcel p = pool[i];
+                if (p != null) {
+                    pool[i] = null;
+                    return p;
+                }
+            }
+        }
+        return new Parcel();
+    }
+
+    public void recycle() {
+        size = pos = 0;
+        objects.clear();
+        synchronized (pool) {
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                if (pool[i] == null) {
+                    pool[i] = this;
+                    return;
+                }
+            }
+        }
+    }
+
+    public int dataSize() {
+        return size;
+    }
+
+    public int dataAvail() {
+        return size - pos;
+    }
+
+    public int dataPosition() {
+        return pos;
+    }
+
+    public void setDataPosition(final int pos) {
+        this.pos = pos;
+    }
+
+    public byte[] marshall() {
+        if (!objects.isEmpty())
+            throw new RuntimeException("Tried to marshall a Parcel that contains objects");
+        return Arrays.copyOf(data, size);
+    }
+
+    public void unmarshall(final byte[] data, final int offset, final int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, this.data, 0, length);
+        size = pos = length;
+        objects.clear();
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > data.length)
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+
+    private int grow(final int length) {
+        final int padded = (length + 3) & ~3;
+        ensureCapacity(pos + padded);
+        final int start = pos;
+        pos += padded;
+        if (pos > size)
+            size = pos;
+        return start;
+    }
+
+    private int take(final int length) {
+        final int padded = (length + 3) & ~3;
+        if (pos + padded > size)
+            throw new IllegalStateException("read past end of Parcel");
+        final int start = pos;
+        pos += padded;
+        return start;
+    }
+
+    public void writeInt(final int v) {
+        final int i = grow(4);
+        data[i] = (byte) v;
+        data[i + 1] = (byte) (v >> 8);
+        data[i + 2] = (byte) (v >> 16);
+        data[i + 3] = (byte) (v >> 24);
+    }
+
+    public int readInt() {
+        if (pos + 4 > size)
+            return 0; // like the native Parcel
+        final int i = take(4);
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+    }
+
+    public void writeLong(final long v) {
+        writeInt((int) v);
+        writeInt((int) (v >>> 32));
+    }
+
+    public long readLong() {
+        final long low = readInt() & 0xFFFFFFFFL;
+        return low | (long) readInt() << 32;
+    }
+
+    public void writeByte(final byte v) {
+        writeInt(v);
+    }
+
+    public byte readByte() {
+        return (byte) readInt();
+    }
+
+    public void writeString(final String v) {
+        if (v == null) {
+            writeInt(-1);
+            return;
+        }
+        final int length = v.length();
+        writeInt(length);
+        final int i = grow((length + 1) * 2);
+        for (int j = 0; j < length; ++j) {
+            final char c = v.charAt(j);
+            data[i + j * 2] = (byte) c;
+            data[i + j * 2 + 1] = (byte) (c >> 8);
+        }
+        data[i + length * 2] = data[i + length * 2 + 1] = 0;
+    }
+
+    public String readString() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final int i = take((length + 1) * 2);
+        final char[] chars = new char[length];
+        for (int j = 0; j < length; ++j)
+            chars[j] = (char) ((data[i + j * 2] & 0xFF) | (data[i + j * 2 + 1] & 0xFF) << 8);
+        return new String(chars);
+    }
+
+    public void writeByteArray(final byte[] b) {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(b.length);
+        System.arraycopy(b, 0, data, grow(b.length), b.length);
+    }
+
+    public byte[] createByteArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final int i = take(length);
+        return Arrays.copyOfRange(data, i, i + length);
+    }
+
+    public void writeIntArray(final int[] a) {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        for (final int v : a)
+            writeInt(v);
+    }
+
+    public int[] createIntArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final int[] a = new int[length];
+        for (int i = 0; i < length; ++i)
+            a[i] = readInt();
+        return a;
+    }
+
+    public void writeLongArray(final long[] a) {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        for (final long v : a)
+            writeLong(v);
+    }
+
+    public long[] createLongArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final long[] a = new long[length];
+        for (int i = 0; i < length; ++i)
+            a[i] = readLong();
+        return a;
+    }
+
+    public void writeStringArray(final String[] a) {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        for (final String s : a)
+            writeString(s);
+    }
+
+    public String[] createStringArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final String[] a = new String[length];
+        for (int i = 0; i < length; ++i)
+            a[i] = readString();
+        return a;
+    }
+
+    public void writeStringList(final List<String> list) {
+        if (list == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(list.size());
+        for (final String s : list)
+            writeString(s);
+    }
+
+    public ArrayList<String> createStringArrayList() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final ArrayList<String> list = new ArrayList<String>(length);
+        for (int i = 0; i < length; ++i)
+            list.add(readString());
+        return list;
+    }
+
+    public void writeStrongBinder(final IBinder binder) {
+        writeObject(binder);
+    }
+
+    public IBinder readStrongBinder() {
+        return (IBinder) readObject();
+    }
+
+    void writeObject(final Object o) {
+        if (o == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(objects.size());
+        objects.add(o);
+    }
+
+    Object readObject() {
+        final int index = readInt();
+        return index < 0 ? null : objects.get(index);
+    }
+
+    public void writeParcelable(final Parcelable p, final int flags) {
+        if (p == null) {
+            writeString(null);
+            return;
+        }
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(final ClassLoader loader) {
+        final String name = readString();
+        if (name == null)
+            return null;
+        return (T) getCreator(name, loader).createFromParcel(this);
+    }
+
+    private static Parcelable.Creator<?> getCreator(final String name, final ClassLoader loader) {
+        Parcelable.Creator<?> creator = creators.get(name);
+        if (creator == null) {
+            try {
+                final Class<?> c = Class.forName(name, true, loader == null ? Parcel.class.getClassLoader() : loader);
+                final Field field = c.getField("CREATOR");
+                creator = (Parcelable.Creator<?>) field.get(null);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Parcelable protocol requires a CREATOR in " + name, e);
+            }
+            if (creator == null)
+                throw new RuntimeException("CREATOR of " + name + " is null");
+            creators.put(name, creator);
+        }
+        return creator;
+    }
+
+    public <T extends Parcelable> void writeTypedArray(final T[] a, final int flags) {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        for (final T p : a) {
+            if (p == null) {
+                writeInt(0);
+            } else {
+                writeInt(1);
+                p.writeToParcel(this, flags);
+            }
+        }
+    }
+
+    public <T> T[] createTypedArray(final Parcelable.Creator<T> creator) {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final T[] a = creator.newArray(length);
+        for (int i = 0; i < length; ++i)
+            if (readInt() != 0)
+                a[i] = creator.createFromParcel(this);
+        return a;
+    }
+
+    public void writeParcelableArray(final Parcelable[] a, final int flags) {
+        if (a == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(a.length);
+        for (final Parcelable p : a)
+            writeParcelable(p, flags);
+    }
+
+    public Parcelable[] readParcelableArray(final ClassLoader loader) {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final Parcelable[] a = new Parcelable[length];
+        for (int i = 0; i < length; ++i)
+            a[i] = readParcelable(loader);
+        return a;
+    }
+
+    public void writeBundle(final Bundle bundle) {
+        if (bundle == null) {
+            writeInt(-1);
+            return;
+        }
+        bundle.writeToParcel(this, 0);
+    }
+
+    public Bundle readBundle(final ClassLoader loader) {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final Bundle bundle = new Bundle(this, length);
+        bundle.setClassLoader(loader);
+        return bundle;
+    }
+
+    public void writeValue(final Object v) {
+        if (v == null) {
+            writeInt(VAL_NULL);
+        } else if (v instanceof String) {
+            writeInt(VAL_STRING);
+            writeString((String) v);
+        } else if (v instanceof Integer) {
+            writeInt(VAL_INTEGER);
+            writeInt((Integer) v);
+        } else if (v instanceof Bundle) {
+            writeInt(VAL_BUNDLE);
+            writeBundle((Bundle) v);
+        } else if (v instanceof Parcelable) {
+            writeInt(VAL_PARCELABLE);
+            writeParcelable((Parcelable) v, 0);
+        } else if (v instanceof Long) {
+            writeInt(VAL_LONG);
+            writeLong((Long) v);
+        } else if (v instanceof Boolean) {
+            writeInt(VAL_BOOLEAN);
+            writeInt((Boolean) v ? 1 : 0);
+        } else if (v instanceof byte[]) {
+            writeInt(VAL_BYTEARRAY);
+            writeByteArray((byte[]) v);
+        } else if (v instanceof String[]) {
+            writeInt(VAL_STRINGARRAY);
+            writeStringArray((String[]) v);
+        } else if (v instanceof IBinder) {
+            writeInt(VAL_IBINDER);
+            writeStrongBinder((IBinder) v);
+        } else if (v instanceof Parcelable[]) {
+            writeInt(VAL_PARCELABLEARRAY);
+            writeParcelableArray((Parcelable[]) v, 0);
+        } else if (v instanceof int[]) {
+            writeInt(VAL_INTARRAY);
+            writeIntArray((int[]) v);
+        } else if (v instanceof long[]) {
+            writeInt(VAL_LONGARRAY);
+            writeLongArray((long[]) v);
+        } else {
+            throw new RuntimeException("Parcel: unable to marshal value " + v);
+        }
+    }
+
+    public Object readValue(final ClassLoader loader) {
+        final int type = readInt();
+        switch (type) {
+            case VAL_NULL:
+                return null;
+            case VAL_STRING:
+                return readString();
+            case VAL_INTEGER:
+                return readInt();
+            case VAL_BUNDLE:
+                return readBundle(loader);
+            case VAL_PARCELABLE:
+                return readParcelable(loader);
+            case VAL_LONG:
+                return readLong();
+            case VAL_BOOLEAN:
+                return readInt() != 0;
+            case VAL_BYTEARRAY:
+                return createByteArray();
+            case VAL_STRINGARRAY:
+                return createStringArray();
+            case VAL_IBINDER:
+                return readStrongBinder();
+            case VAL_PARCELABLEARRAY:
+                return readParcelableArray(loader);
+            case VAL_INTARRAY:
+                return createIntArray();
+            case VAL_LONGARRAY:
+                return createLongArray();
+            default:
+                throw new RuntimeException("Parcel: unmarshalling unknown type code " + type + " at offset " + (pos - 4));
+        }
+    }
+}
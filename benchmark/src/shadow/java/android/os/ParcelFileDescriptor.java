@@ -0,0 +1,198 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File descriptors backed by real kernel pipes and files, so pumping through them costs what it costs on a device
+ *
+ * The JVM cannot call pipe(2), createPipe opens a FIFO instead, created ahead of time in batches with a single
+ * mkfifo call and unlinked as soon as both ends are open. dup is not available and always throws.
+ */
+public class ParcelFileDescriptor implements Parcelable, Closeable {
+
+    public static final int MODE_READ_ONLY = 0x10000000;
+    public static final int MODE_WRITE_ONLY = 0x20000000;
+    public static final int MODE_READ_WRITE = 0x30000000;
+    public static final int MODE_CREATE = 0x08000000;
+    public static final int MODE_TRUNCATE = 0x04000000;
+    public static final int MODE_APPEND = 0x02000000;
+
+    private static final int FIFO_BATCH = 64;
+    private static final ArrayDeque<File> fifos = new ArrayDeque<File>();
+    private static File fifoDir;
+    private static int fifoCount;
+
+    private final Closeable owner;
+    private final FileDescriptor fd;
+    private final long statSize;
+
+    private ParcelFileDescriptor(final Closeable owner, final FileDescriptor fd, final long statSize) {
+        this.owner = owner;
+        this.fd = fd;
+        this.statSize = statSize;
+    }
+
+    public static ParcelFileDescriptor[] createPipe() throws IOException {
+        final File fifo = nextFifo();
+        try {
+            // opening either end alone would block until the other one is opened, a read-write handle held while
+            // opening both avoids that, closing it leaves a plain one way pipe
+            final RandomAccessFile both = new RandomAccessFile(fifo, "rw");
+            try {
+                final FileInputStream read = new FileInputStream(fifo);
+                final FileOutputStream write = new FileOutputStream(fifo);
+                return new ParcelFileDescriptor[]{
+                        new ParcelFileDescriptor(read, read.getFD(), -1),
+                        new ParcelFileDescriptor(write, write.getFD(), -1)
+                };
+            } finally {
+                both.close();
+            }
+        } finally {
+            fifo.delete();
+        }
+    }
+
+    private static File nextFifo() throws IOException {
+        synchronized (fifos) {
+            if (fifos.isEmpty()) {
+                if (fifoDir == null) {
+                    fifoDir = File.createTempFile("xmpp-api-pipes", "");
+                    if (!fifoDir.delete() || !fifoDir.mkdir())
+                        throw new IOException("cannot create " + fifoDir);
+                    fifoDir.deleteOnExit();
+                }
+                final List<String> command = new ArrayList<String>(FIFO_BATCH + 1);
+                command.add("mkfifo");
+                for (int i = 0; i < FIFO_BATCH; ++i) {
+                    final File fifo = new File(fifoDir, Integer.toString(fifoCount++));
+                    command.add(fifo.getPath());
+                    fifos.add(fifo);
+                }
+                final java.lang.Process mkfifo = new ProcessBuilder(command).inheritIO().start();
+                try {
+                    if (mkfifo.waitFor() != 0)
+                        throw new IOException("mkfifo failed");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted creating pipes");
+                }
+            }
+            return fifos.poll();
+        }
+    }
+
+    public static ParcelFileDescriptor open(final File file, final int mode) throws FileNotFoundException {
+        try {
+            if ((mode & MODE_READ_WRITE) == MODE_READ_ONLY) {
+                final FileInputStream in = new FileInputStream(file);
+                return new ParcelFileDescriptor(in, in.getFD(), file.length());
+            }
+            if ((mode & MODE_READ_WRITE) == MODE_WRITE_ONLY) {
+                final FileOutputStream out = new FileOutputStream(file, (mode & MODE_APPEND) != 0);
+                return new ParcelFileDescriptor(out, out.getFD(), file.length());
+            }
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if ((mode & MODE_TRUNCATE) != 0)
+                raf.setLength(0);
+            return new ParcelFileDescriptor(raf, raf.getFD(), raf.length());
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    public static ParcelFileDescriptor dup(final FileDescriptor orig) throws IOException {
+        throw new IOException("dup is not available on the JVM");
+    }
+
+    public ParcelFileDescriptor dup() throws IOException {
+        return dup(fd);
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        return fd;
+    }
+
+    /**
+     * @return size of a regular file, -1 for pipes
+     */
+    public long getStatSize() {
+        return statSize;
+    }
+
+    public int getFd() {
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        owner.close();
+    }
+
+    public static class AutoCloseInputStream extends FileInputStream {
+        private final ParcelFileDescriptor pfd;
+
+        public AutoCloseInputStream(final ParcelFileDescriptor pfd) {
+            super(pfd.getFileDescriptor());
+            this.pfd = pfd;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                pfd.close();
+            }
+        }
+    }
+
+    public static class AutoCloseOutputStream extends FileOutputStream {
+        private final ParcelFileDescriptor pfd;
+
+        public AutoCloseOutputStream(final ParcelFileDescriptor pfd) {
+            super(pfd.getFileDescriptor());
+            this.pfd = pfd;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                pfd.close();
+            }
+        }
+    }
+
+    public int describeContents() {
+        return Parcelable.CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    public void writeToParcel(final Parcel dest, final int flags) {
+        // never leaves the process, so the same descriptor is handed over instead of a dup
+        dest.writeObject(this);
+    }
+
+    public static final Creator<ParcelFileDescriptor> CREATOR = new Creator<ParcelFileDescriptor>() {
+        public ParcelFileDescriptor createFromParcel(final Parcel source) {
+            return (ParcelFileDescriptor) source.readObject();
+        }
+
+        public ParcelFileDescriptor[] newArray(final int size) {
+            return new ParcelFileDescriptor[size];
+        }
+    };
+}
@@ -0,0 +1,33 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+public class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int SYSTEM_UID = 1000;
+
+    private static final int PID;
+
+    static {
+        int pid;
+        try {
+            // "pid@host" on every common JVM
+            pid = Integer.parseInt(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+        } catch (NumberFormatException e) {
+            pid = 1;
+        }
+        PID = pid;
+    }
+
+    public static int myPid() {
+        return PID;
+    }
+
+    public static int myUid() {
+        return 10000;
+    }
+
+    public static void setThreadPriority(final int priority) {
+    }
+}
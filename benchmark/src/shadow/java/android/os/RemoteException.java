@@ -0,0 +1,10 @@
+package android.os;
+
+public class RemoteException extends Exception {
+    public RemoteException() {
+    }
+
+    public RemoteException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,55 @@
+package android.util;
+
+/**
+ * Warnings and errors go to stderr, everything below is dropped so it does not skew measurements
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(final String tag, final int level) {
+        return level >= WARN;
+    }
+
+    public static int v(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int d(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int i(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(final String tag, final String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(final String level, final String tag, final String msg, final Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null)
+            tr.printStackTrace();
+        return 0;
+    }
+}
@@ -0,0 +1,35 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * JVM stand-in for what the aidl tool generates from IXmppPluginCallback.aidl, keep the methods in sync with it
+ */
+public interface IXmppPluginCallback extends IInterface {
+
+    abstract class Stub extends Binder implements IXmppPluginCallback {
+        private static final String DESCRIPTOR = "org.openintents.xmpp.IXmppPluginCallback";
+
+        public Stub() {
+            attachInterface(this, DESCRIPTOR);
+        }
+
+        public static IXmppPluginCallback asInterface(final IBinder obj) {
+            return obj == null ? null : (IXmppPluginCallback) obj.queryLocalInterface(DESCRIPTOR);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    ParcelFileDescriptor createOutputPipe(int pipeId) throws RemoteException;
+
+    Intent execute(Intent data, ParcelFileDescriptor input, int pipeId) throws RemoteException;
+}
@@ -0,0 +1,32 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * JVM stand-in for what the aidl tool generates from IXmppResultCallback.aidl, keep the methods in sync with it
+ */
+public interface IXmppResultCallback extends IInterface {
+
+    abstract class Stub extends Binder implements IXmppResultCallback {
+        private static final String DESCRIPTOR = "org.openintents.xmpp.IXmppResultCallback";
+
+        public Stub() {
+            attachInterface(this, DESCRIPTOR);
+        }
+
+        public static IXmppResultCallback asInterface(final IBinder obj) {
+            return obj == null ? null : (IXmppResultCallback) obj.queryLocalInterface(DESCRIPTOR);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    void onResult(long requestId, Intent result) throws RemoteException;
+}
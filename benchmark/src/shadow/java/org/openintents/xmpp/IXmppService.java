@@ -0,0 +1,42 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * JVM stand-in for what the aidl tool generates from IXmppService.aidl, keep the methods in sync with it
+ *
+ * Only the local path exists, asInterface hands back the Stub itself, as real binders do within one process.
+ */
+public interface IXmppService extends IInterface {
+
+    abstract class Stub extends Binder implements IXmppService {
+        private static final String DESCRIPTOR = "org.openintents.xmpp.IXmppService";
+
+        public Stub() {
+            attachInterface(this, DESCRIPTOR);
+        }
+
+        public static IXmppService asInterface(final IBinder obj) {
+            return obj == null ? null : (IXmppService) obj.queryLocalInterface(DESCRIPTOR);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    ParcelFileDescriptor createOutputPipe(int pipeId) throws RemoteException;
+
+    Intent execute(Intent data, ParcelFileDescriptor input, int pipeId) throws RemoteException;
+
+    Intent callback(Intent data, IXmppPluginCallback callback) throws RemoteException;
+
+    void executeAsync(long requestId, Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output,
+                      IXmppResultCallback callback) throws RemoteException;
+}
@@ -31,6 +31,7 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.XmppMessage;
 import org.openintents.xmpp.AbstractXmppPluginCallback;
 import org.openintents.xmpp.util.XmppPluginCallbackApi;
 import org.openintents.xmpp.util.XmppServiceApi;
@@ -203,11 +204,9 @@ public class XmppApiActivity extends Activity {
         @Override
         public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
             if(XmppPluginCallbackApi.ACTION_NEW_MESSAGE.equals(data.getAction())) {
+                final XmppMessage message = XmppMessage.fromIntent(data);
                 showToast(String.format(Locale.US, "status: %d, from: '%s', to: '%s', body: '%s'",
-                        data.getIntExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_STATUS, -1),
-                        data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM),
-                        data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO),
-                        data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY)));
+                        message.getStatus(), message.getFrom(), message.getTo(), message.getBody()));
                 final Intent result = new Intent();
                 result.putExtra(XmppPluginCallbackApi.RESULT_CODE, XmppPluginCallbackApi.RESULT_CODE_SUCCESS);
                 return result;
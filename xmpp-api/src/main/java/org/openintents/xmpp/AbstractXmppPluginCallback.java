@@ -1,13 +1,73 @@
 package org.openintents.xmpp;
 
 import android.content.Intent;
+import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.util.Log;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 public abstract class AbstractXmppPluginCallback extends IXmppPluginCallback.Stub implements IExecuteService, ExecuteService.Execute {
 
     private final ExecuteService executeService = new ExecuteService(this);
 
+    private volatile InboundDispatcher inboundDispatcher;
+
+    /**
+     * Acknowledge ACTION_NEW_MESSAGE and ACTION_IQ_RESPONSE calls right away and run them on threads of this plugin
+     * instead of the provider's binder thread, calls with an input stream are still run directly
+     *
+     * results of queued calls are only logged, as the provider already got its acknowledgement
+     * @param capacity calls to buffer before policy applies
+     * @param threads workers running the queued calls, 1 keeps them in order
+     */
+    public synchronized void enableQueuedDispatch(final int capacity, final int threads, final InboundDispatcher.OverflowPolicy policy) {
+        disableQueuedDispatch();
+        inboundDispatcher = new InboundDispatcher(this, capacity, threads, policy);
+    }
+
+    /**
+     * Go back to running every call on the binder thread, calls already queued still run
+     */
+    public synchronized void disableQueuedDispatch() {
+        if (inboundDispatcher != null) {
+            inboundDispatcher.close();
+            inboundDispatcher = null;
+        }
+    }
+
+    /**
+     * @return the dispatcher set up by enableQueuedDispatch, or null
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return inboundDispatcher;
+    }
+
+    /**
+     * The last calls served, also printed by dumpsys
+     */
+    public FlightRecorder getFlightRecorder() {
+        return executeService.getFlightRecorder();
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter pw, final String[] args) {
+        if (!ExecuteService.isDumpAllowed(Binder.getCallingUid())) {
+            pw.println("Permission Denial: can't dump " + getClass().getName() + " from uid " + Binder.getCallingUid());
+            return;
+        }
+        pw.println(getClass().getName() + ":");
+        executeService.dump(pw);
+        final InboundDispatcher dispatcher = inboundDispatcher;
+        if (dispatcher != null)
+            pw.println("Inbound queue: " + dispatcher.size() + " waiting, " + dispatcher.getDroppedCount() + " dropped");
+    }
+
     @Override
     public ParcelFileDescriptor createOutputPipe(final int pipeId) throws RemoteException {
         return executeService.createOutputPipe(pipeId);
@@ -15,6 +75,29 @@ public abstract class AbstractXmppPluginCallback extends IXmppPluginCallback.Stu
 
     @Override
     public Intent execute(final Intent data, final ParcelFileDescriptor input, final int pipeId) throws RemoteException {
+        final InboundDispatcher dispatcher = inboundDispatcher;
+        if (dispatcher != null && input == null && isQueueable(data.getAction())) {
+            // queued calls never write output, drop the pipe now so the provider is not left waiting on it
+            final ParcelFileDescriptor output = executeService.getOutputPipes().take(Binder.getCallingPid(), pipeId);
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.e(XmppServiceApi.TAG, "IOException when closing output ParcelFileDescriptor", e);
+                }
+            }
+            // recorded as acknowledged, the call itself runs later on a worker
+            final FlightRecorder recorder = executeService.getFlightRecorder();
+            final long callId = recorder.begin(data.getAction(), data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                    Binder.getCallingPid(), Binder.getCallingUid());
+            final Intent result = dispatcher.enqueue(data);
+            recorder.end(callId, result);
+            return result;
+        }
         return executeService.execute(data, input, pipeId);
     }
+
+    private static boolean isQueueable(final String action) {
+        return XmppPluginCallbackApi.ACTION_NEW_MESSAGE.equals(action) || XmppPluginCallbackApi.ACTION_IQ_RESPONSE.equals(action);
+    }
 }
@@ -1,12 +1,63 @@
 package org.openintents.xmpp;
 
 import android.content.Intent;
+import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import org.openintents.xmpp.util.PluginCallbackRouter;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
 
 public abstract class AbstractXmppService extends IXmppService.Stub implements IExecuteService, ExecuteService.Execute {
 
     private final ExecuteService executeService = new ExecuteService(this);
+    private final PluginCallbackRouter pluginCallbackRouter = new PluginCallbackRouter();
+
+    public AbstractXmppService() {
+        pluginCallbackRouter.setOnCallbackDied(new PluginCallbackRouter.OnCallbackDied() {
+            @Override
+            public void onCallbackDied(final int pid, final List<XmppPluginCallbackApi> removed) {
+                executeService.getOutputPipes().releaseProcess(pid);
+                onPluginCallbackDied(pid, removed);
+            }
+        });
+    }
+
+    /**
+     * Register plugin callbacks here from callback(), routes and output pipes of a plugin are released
+     * automatically when its process dies
+     */
+    protected PluginCallbackRouter getPluginCallbackRouter() {
+        return pluginCallbackRouter;
+    }
+
+    /**
+     * Called once a plugin process with registered callbacks died, after its routes and output pipes were released,
+     * override to release anything else held for it, like its MessageStreamWriter
+     */
+    protected void onPluginCallbackDied(final int pid, final List<XmppPluginCallbackApi> removed) {
+    }
+
+    /**
+     * The last calls served, also printed by dumpsys
+     */
+    public FlightRecorder getFlightRecorder() {
+        return executeService.getFlightRecorder();
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter pw, final String[] args) {
+        if (!ExecuteService.isDumpAllowed(Binder.getCallingUid())) {
+            pw.println("Permission Denial: can't dump " + getClass().getName() + " from uid " + Binder.getCallingUid());
+            return;
+        }
+        pw.println(getClass().getName() + ":");
+        executeService.dump(pw);
+        pw.println("Plugins with callbacks: " + pluginCallbackRouter.size());
+    }
 
     @Override
     public ParcelFileDescriptor createOutputPipe(final int pipeId) throws RemoteException {
@@ -17,4 +68,10 @@ public abstract class AbstractXmppService extends IXmppService.Stub implements I
     public Intent execute(final Intent data, final ParcelFileDescriptor input, final int pipeId) throws RemoteException {
         return executeService.execute(data, input, pipeId);
     }
+
+    @Override
+    public void executeAsync(final long requestId, final Intent data, final ParcelFileDescriptor input,
+                             final ParcelFileDescriptor output, final IXmppResultCallback callback) throws RemoteException {
+        executeService.executeAsync(requestId, data, input, output, callback);
+    }
 }
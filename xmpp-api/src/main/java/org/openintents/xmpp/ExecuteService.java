@@ -3,21 +3,37 @@ package org.openintents.xmpp;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
+import org.openintents.xmpp.util.XmppFuture;
+import org.openintents.xmpp.util.XmppMetrics;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
 import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ExecuteService {
 
     public interface Execute {
         /**
          * Execute without worrying about closing streams
+         *
+         * if the caller handed over regular files instead of pipes, inputStream and outputStream are
+         * FileInputStream and FileOutputStream over them, use ParcelFileDescriptorUtil.copy or their channels
+         * to transfer or map them directly
          * @param data intent, never null
          * @param inputStream may be null, automatically closed
          * @param outputStream may be null, automatically closed
@@ -26,8 +42,21 @@ public class ExecuteService {
         Intent execute(Intent data, InputStream inputStream, OutputStream outputStream);
     }
 
+    /**
+     * Default number of threads running executeAsync requests
+     */
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+    /**
+     * Default number of executeAsync requests waiting for a thread, beyond which they fail with QUEUE_FULL
+     */
+    public static final int DEFAULT_ASYNC_QUEUE = 256;
+
     private final Execute execute;
-    private final Map<Long, ParcelFileDescriptor> mOutputPipeMap = new HashMap<Long, ParcelFileDescriptor>();
+    // created on the first executeAsync unless given, plugin callbacks never get any
+    private Executor asyncExecutor;
+    private final OutputPipeRegistry mOutputPipes = new OutputPipeRegistry();
+    private final FlightRecorder flightRecorder = new FlightRecorder();
+    private volatile RequestScheduler scheduler;
 
     public ExecuteService(final Execute execute) {
         if(execute == null)
@@ -35,15 +64,115 @@ public class ExecuteService {
         this.execute = execute;
     }
 
-    private long createKey(int id) {
-        int callingPid = Binder.getCallingPid();
-        return ((long) callingPid << 32) | ((long) id & 0xFFFFFFFL);
+    /**
+     * @param asyncExecutor runs executeAsync requests, so they never hold a binder thread
+     */
+    public ExecuteService(final Execute execute, final Executor asyncExecutor) {
+        if(execute == null || asyncExecutor == null)
+            throw new NullPointerException("execute and asyncExecutor must be non-null");
+        this.execute = execute;
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public static Executor newAsyncExecutor(final int threads) {
+        return newAsyncExecutor(threads, DEFAULT_ASYNC_QUEUE);
+    }
+
+    /**
+     * @param queueCapacity requests waiting for a thread, beyond which executeAsync answers QUEUE_FULL
+     */
+    public static Executor newAsyncExecutor(final int threads, final int queueCapacity) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "XMPP API async execute");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private synchronized Executor getAsyncExecutor() {
+        if (asyncExecutor == null)
+            asyncExecutor = newAsyncExecutor(DEFAULT_ASYNC_THREADS);
+        return asyncExecutor;
+    }
+
+    /**
+     * Run requests through scheduler instead of directly, null to stop scheduling
+     *
+     * synchronous execute calls still hold their binder thread until the result is ready, executeAsync calls
+     * release it right away
+     */
+    public void setScheduler(final RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public OutputPipeRegistry getOutputPipes() {
+        return mOutputPipes;
+    }
+
+    /**
+     * @return the last calls served by this service, for dump()
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    // android.os.Process.SHELL_UID, only public from API 29 on
+    private static final int SHELL_UID = 2000;
+
+    /**
+     * @return true if uid may see dump(), which lists accounts and callers, that is dumpsys running as shell or
+     * system, root, or this app itself
+     */
+    static boolean isDumpAllowed(final int uid) {
+        return uid == Process.myUid() || uid == Process.SYSTEM_UID || uid == SHELL_UID || uid == 0;
+    }
+
+    /**
+     * @return true if data is ACTION_GET_STATS from a caller that may see the stats without asking Execute, call
+     * from the binder thread
+     */
+    private static boolean isStatsAllowed(final Intent data) {
+        return XmppServiceApi.ACTION_GET_STATS.equals(data.getAction()) && isDumpAllowed(Binder.getCallingUid());
+    }
+
+    private static Intent getStatsResult() {
+        final Intent result = XmppUtils.getSuccess();
+        result.putExtra(XmppServiceApi.RESULT_STATS, XmppMetrics.getStats());
+        return result;
+    }
+
+    /**
+     * Print the recent calls, the calls in flight, the scheduler queues and the output pipes waiting for their
+     * execute call, for Binder.dump
+     */
+    public void dump(final PrintWriter pw) {
+        flightRecorder.dump(pw);
+        pw.println();
+        pw.println("In flight:");
+        for (final XmppMetrics.ActionStats stats : XmppMetrics.getIncoming().getAllActionStats())
+            if (stats.getInFlight() > 0)
+                pw.println("  " + stats.getInFlight() + "  " + stats.getAction()
+                        + (stats.getAccountJid() == null ? "" : "  " + stats.getAccountJid()));
+        final RequestScheduler s = scheduler;
+        if (s != null)
+            pw.println("Scheduler queue depths: " + s.getQueueDepths());
+        pw.println("Output pipes waiting: " + mOutputPipes.size());
     }
 
     public ParcelFileDescriptor createOutputPipe(int outputPipeId) throws RemoteException {
         try {
             ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-            mOutputPipeMap.put(createKey(outputPipeId), pipe[1]);
+            mOutputPipes.put(Binder.getCallingPid(), outputPipeId, pipe[1]);
             return pipe[0];
         } catch (IOException e) {
             Log.e(XmppServiceApi.TAG, "IOException in ExecuteService", e);
@@ -53,18 +182,257 @@ public class ExecuteService {
     }
 
     public Intent execute(Intent data, ParcelFileDescriptor input, int outputPipeId) throws RemoteException {
-        long key = createKey(outputPipeId);
-        ParcelFileDescriptor output = mOutputPipeMap.get(key);
-        mOutputPipeMap.remove(key);
-        return executeInternal(data, input, output);
+        final XmppMetrics.ActionStats stats = XmppMetrics.getIncoming().begin(data);
+        final long start = System.nanoTime();
+        final long callId = flightRecorder.begin(data.getAction(), data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                Binder.getCallingPid(), Binder.getCallingUid());
+        Intent result = null;
+        try {
+            if (isStatsAllowed(data)) {
+                closeQuietly(input);
+                closeQuietly(mOutputPipes.take(Binder.getCallingPid(), outputPipeId));
+                result = getStatsResult();
+            } else {
+                result = executeOrSchedule(data, input, outputPipeId, callId);
+            }
+            return result;
+        } finally {
+            XmppMetrics.getIncoming().end(stats, start, data, result);
+            flightRecorder.end(callId, result);
+        }
+    }
+
+    private Intent executeOrSchedule(Intent data, ParcelFileDescriptor input, int outputPipeId, long callId) {
+        ParcelFileDescriptor output = mOutputPipes.take(Binder.getCallingPid(), outputPipeId);
+        if (output == null) {
+            // caller sent a regular file to write into instead of creating an output pipe
+            output = data.getParcelableExtra(XmppPluginCallbackApi.EXTRA_OUTPUT_FILE);
+        }
+        final RequestScheduler s = scheduler;
+        if (s == null)
+            return executeRecorded(callId, data, input, output);
+
+        final ScheduledCall call = new ScheduledCall(callId, data, input, output);
+        final XmppFuture future = s.submit(data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                Binder.getCallingUid(), getPriority(data), call);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return XmppUtils.getExceptionError(data, e);
+        } finally {
+            call.closeIfNotStarted();
+        }
+    }
+
+    /**
+     * Queue the request and return right away, the result is sent to callback once ready, requests may complete
+     * in any order
+     */
+    public void executeAsync(final long requestId, final Intent data, final ParcelFileDescriptor input,
+                             final ParcelFileDescriptor output, final IXmppResultCallback callback) {
+        final XmppMetrics.ActionStats stats = XmppMetrics.getIncoming().begin(data);
+        final long start = System.nanoTime();
+        // oneway calls have no calling pid, only the uid is known
+        final long callId = flightRecorder.begin(data.getAction(), data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                FlightRecorder.UNKNOWN_PID, Binder.getCallingUid());
+        if (isStatsAllowed(data)) {
+            closeQuietly(input);
+            closeQuietly(output);
+            sendResult(requestId, data, getStatsResult(), callback, stats, start, callId);
+            return;
+        }
+        final RequestScheduler s = scheduler;
+        if (s != null) {
+            final ScheduledCall call = new ScheduledCall(callId, data, input, output);
+            final XmppFuture future = s.submit(data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                    Binder.getCallingUid(), getPriority(data), call);
+            future.addCallback(new XmppPluginCallbackApi.IXmppCallback() {
+                @Override
+                public void onReturn(final Intent result) {
+                    call.closeIfNotStarted();
+                    sendResult(requestId, data, result, callback, stats, start, callId);
+                }
+            }, XmppFuture.DIRECT_EXECUTOR);
+            return;
+        }
+
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                sendResult(requestId, data, executeRecorded(callId, data, input, output), callback, stats, start, callId);
+            }
+        };
+        try {
+            getAsyncExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(input);
+            closeQuietly(output);
+            sendResult(requestId, data, XmppUtils.getError(XmppError.QUEUE_FULL, "too many queued executeAsync requests"),
+                    callback, stats, start, callId);
+        }
     }
 
+    private static int getPriority(final Intent data) {
+        return data.getIntExtra(XmppServiceApi.EXTRA_PRIORITY, XmppServiceApi.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Request waiting in the scheduler, which owns its file descriptors until it runs
+     */
+    private class ScheduledCall implements Callable<Intent> {
+        private final long callId;
+        private final Intent data;
+        private final ParcelFileDescriptor input, output;
+        // whoever claims first owns the file descriptors, the request or closeIfNotStarted
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        ScheduledCall(final long callId, final Intent data, final ParcelFileDescriptor input, final ParcelFileDescriptor output) {
+            this.callId = callId;
+            this.data = data;
+            this.input = input;
+            this.output = output;
+        }
+
+        @Override
+        public Intent call() {
+            if (!claimed.compareAndSet(false, true))
+                return XmppUtils.getError(XmppError.CANCELLED);
+            return executeRecorded(callId, data, input, output);
+        }
+
+        /**
+         * Close the file descriptors of a request that was rejected or cancelled before it ran
+         */
+        void closeIfNotStarted() {
+            if (claimed.compareAndSet(false, true)) {
+                closeQuietly(input);
+                closeQuietly(output);
+            }
+        }
+    }
+
+    private void sendResult(final long requestId, final Intent data, final Intent result, final IXmppResultCallback callback,
+                            final XmppMetrics.ActionStats stats, final long start, final long callId) {
+        XmppMetrics.getIncoming().end(stats, start, data, result);
+        flightRecorder.end(callId, result);
+        if (callback == null)
+            return;
+        try {
+            callback.onResult(requestId, result);
+        } catch (RemoteException e) {
+            Log.e(XmppServiceApi.TAG, "RemoteException sending result of executeAsync, caller gone?", e);
+        }
+    }
+
+    /**
+     * Still a FileInputStream, so Execute implementations can use its channel, bytes read through the channel are
+     * not counted though
+     */
+    private class CountingInputStream extends ParcelFileDescriptor.AutoCloseInputStream {
+        private final long callId;
+        private long count;
+        private boolean closed;
+
+        CountingInputStream(final ParcelFileDescriptor pfd, final long callId) {
+            super(pfd);
+            this.callId = callId;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0)
+                ++count;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed && callId >= 0)
+                flightRecorder.addPipeBytes(callId, count);
+            closed = true;
+            super.close();
+        }
+    }
+
+    private class CountingOutputStream extends ParcelFileDescriptor.AutoCloseOutputStream {
+        private final long callId;
+        private long count;
+        private boolean closed;
+
+        CountingOutputStream(final ParcelFileDescriptor pfd, final long callId) {
+            super(pfd);
+            this.callId = callId;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            super.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(final byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            super.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed && callId >= 0)
+                flightRecorder.addPipeBytes(callId, count);
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static void closeQuietly(final ParcelFileDescriptor p) {
+        if (p != null) {
+            try {
+                p.close();
+            } catch (IOException e) {
+                Log.e(XmppServiceApi.TAG, "IOException when closing ParcelFileDescriptor", e);
+            }
+        }
+    }
+
+    /**
+     * Run Execute with streams over input and output, which are closed afterwards, calls made through this are not
+     * credited with their pipe bytes in the flight recorder
+     */
     protected Intent executeInternal(final Intent data, final ParcelFileDescriptor input, final ParcelFileDescriptor output) {
+        return executeRecorded(-1, data, input, output);
+    }
 
+    /**
+     * @param callId flight recorder id to credit the bytes read and written with, -1 for none
+     */
+    private Intent executeRecorded(final long callId, final Intent data, final ParcelFileDescriptor input,
+                                   final ParcelFileDescriptor output) {
         OutputStream outputStream =
-                (output != null) ? new ParcelFileDescriptor.AutoCloseOutputStream(output) : null;
+                (output != null) ? new CountingOutputStream(output, callId) : null;
         InputStream inputStream =
-                (input != null) ? new ParcelFileDescriptor.AutoCloseInputStream(input) : null;
+                (input != null) ? new CountingInputStream(input, callId) : null;
 
         try {
             return execute.execute(data, inputStream, outputStream);
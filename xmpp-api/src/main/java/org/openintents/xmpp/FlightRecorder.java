@@ -0,0 +1,154 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last calls served, in a fixed ring of preallocated slots, for dump()
+ *
+ * Recording never allocates or locks, a call is written into its slot when it starts, so calls that are stuck show
+ * up as running, and completed in place when it ends, unless the ring already wrapped around and reused the slot.
+ */
+public class FlightRecorder {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /**
+     * pid of calls whose caller is not known, like oneway calls, printed as "-"
+     */
+    public static final int UNKNOWN_PID = 0;
+
+    private static final int NO_RESULT = -1;
+
+    private final int capacity;
+    private final AtomicLong next = new AtomicLong();
+
+    // id + 1 of the call in each slot once it is written, 0 while it is being written
+    private final AtomicLongArray ids;
+    // -1 while the call runs, written last when it ends
+    private final AtomicLongArray durations;
+    private final AtomicLongArray pipeBytes;
+    private final String[] actions, accounts;
+    private final int[] pids, uids, resultCodes;
+    private final long[] startMillis, startNanos;
+
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FlightRecorder(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        this.capacity = capacity;
+        ids = new AtomicLongArray(capacity);
+        durations = new AtomicLongArray(capacity);
+        pipeBytes = new AtomicLongArray(capacity);
+        actions = new String[capacity];
+        accounts = new String[capacity];
+        pids = new int[capacity];
+        uids = new int[capacity];
+        resultCodes = new int[capacity];
+        startMillis = new long[capacity];
+        startNanos = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of calls recorded since this was created
+     */
+    public long getCallCount() {
+        return next.get();
+    }
+
+    /**
+     * @param pid calling process, UNKNOWN_PID if there is none
+     * @return id to pass to addPipeBytes and end
+     */
+    public long begin(final String action, final String accountJid, final int pid, final int uid) {
+        final long id = next.getAndIncrement();
+        final int slot = (int) (id % capacity);
+        ids.set(slot, 0);
+        actions[slot] = action;
+        accounts[slot] = accountJid;
+        pids[slot] = pid;
+        uids[slot] = uid;
+        resultCodes[slot] = NO_RESULT;
+        startMillis[slot] = System.currentTimeMillis();
+        startNanos[slot] = System.nanoTime();
+        pipeBytes.set(slot, 0);
+        durations.set(slot, -1);
+        // publishes the fields above to whoever reads the id
+        ids.set(slot, id + 1);
+        return id;
+    }
+
+    public void addPipeBytes(final long id, final long bytes) {
+        final int slot = (int) (id % capacity);
+        if (ids.get(slot) == id + 1)
+            pipeBytes.addAndGet(slot, bytes);
+    }
+
+    /**
+     * @param result the result returned, null if there was none
+     */
+    public void end(final long id, final Intent result) {
+        final int slot = (int) (id % capacity);
+        if (ids.get(slot) != id + 1)
+            return; // overwritten by a newer call already
+        resultCodes[slot] = result == null ? NO_RESULT
+                : result.getIntExtra(XmppPluginCallbackApi.RESULT_CODE, NO_RESULT);
+        durations.set(slot, System.nanoTime() - startNanos[slot]);
+    }
+
+    /**
+     * Print the recorded calls, oldest first
+     */
+    public void dump(final PrintWriter pw) {
+        final long last = next.get();
+        final long first = Math.max(0, last - capacity);
+        final long now = System.nanoTime();
+        final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        pw.println("Last " + (last - first) + " of " + last + " calls:");
+        pw.println("  started       duration ms  result  pipe bytes    pid    uid  action  account");
+        for (long id = first; id < last; ++id) {
+            final int slot = (int) (id % capacity);
+            if (ids.get(slot) != id + 1)
+                continue; // still being written, or already replaced
+            final long duration = durations.get(slot);
+            final String action = actions[slot], account = accounts[slot];
+            final int pid = pids[slot], uid = uids[slot], resultCode = resultCodes[slot];
+            final long started = startMillis[slot], bytes = pipeBytes.get(slot);
+            final long running = now - startNanos[slot];
+            if (ids.get(slot) != id + 1)
+                continue; // replaced while reading it
+            pw.println(String.format(Locale.US, "  %s %12s  %6s  %10d  %5s  %5d  %s  %s",
+                    time.format(new Date(started)),
+                    duration < 0 ? String.format(Locale.US, "%.1f+", running / 1e6) : String.format(Locale.US, "%.1f", duration / 1e6),
+                    duration < 0 ? "running" : resultName(resultCode),
+                    bytes, pid == UNKNOWN_PID ? "-" : String.valueOf(pid), uid, action, account == null ? "-" : account));
+        }
+    }
+
+    private static String resultName(final int resultCode) {
+        switch (resultCode) {
+            case XmppPluginCallbackApi.RESULT_CODE_SUCCESS:
+                return "ok";
+            case XmppPluginCallbackApi.RESULT_CODE_ERROR:
+                return "error";
+            case XmppPluginCallbackApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
+                return "ui";
+            default:
+                return "none";
+        }
+    }
+}
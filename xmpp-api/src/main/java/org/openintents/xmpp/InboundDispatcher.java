@@ -0,0 +1,231 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.util.Log;
+import org.openintents.xmpp.util.XmppMetrics;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppUtils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer of inbound calls, run by its own worker threads so the provider's binder thread only waits
+ * for the enqueue, see AbstractXmppPluginCallback.enableQueuedDispatch
+ *
+ * Calls are recorded in XmppMetrics.getIncoming from their enqueue until their Execute returned, so their latency
+ * includes the time spent waiting in the buffer.
+ */
+public class InboundDispatcher {
+
+    /**
+     * What to do with a call arriving while the buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * hold the provider's binder call until there is room
+         */
+        BLOCK,
+        /**
+         * discard the oldest queued call to make room
+         */
+        DROP_OLDEST,
+        /**
+         * fail the call with QUEUE_FULL, so the provider knows to back off and retry
+         */
+        REJECT
+    }
+
+    private final ExecuteService.Execute execute;
+    private final OverflowPolicy policy;
+    private final Intent[] ring;
+    // metrics of the call in the same slot of ring
+    private final XmppMetrics.ActionStats[] ringStats;
+    private final long[] ringStarts;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head, count;
+    private long dropped;
+    private boolean closed;
+
+    public InboundDispatcher(final ExecuteService.Execute execute, final int capacity, final int threads,
+                             final OverflowPolicy policy) {
+        if (execute == null || policy == null)
+            throw new NullPointerException("execute and policy must be non-null");
+        if (capacity < 1 || threads < 1)
+            throw new IllegalArgumentException("capacity and threads must be at least 1");
+        this.execute = execute;
+        this.policy = policy;
+        this.ring = new Intent[capacity];
+        this.ringStats = new XmppMetrics.ActionStats[capacity];
+        this.ringStarts = new long[capacity];
+        for (int i = 0; i < threads; ++i) {
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Queued call = new Queued();
+                    while (take(call))
+                        dispatch(call);
+                }
+            }, "XMPP API inbound dispatch " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Queue data for the workers according to the overflow policy
+     * @return the result to acknowledge the binder call with
+     */
+    public Intent enqueue(final Intent data) {
+        final XmppMetrics.ActionStats stats = XmppMetrics.getIncoming().begin(data);
+        final long start = System.nanoTime();
+        final Queued discarded = new Queued();
+        final Intent result = offer(data, stats, start, discarded);
+        if (result != null)
+            XmppMetrics.getIncoming().end(stats, start, data, result); // not queued
+        if (discarded.data != null)
+            XmppMetrics.getIncoming().end(discarded.stats, discarded.start, discarded.data,
+                    XmppUtils.getError(XmppError.QUEUE_FULL, "dropped from inbound dispatch queue"));
+        return result == null ? XmppUtils.getSuccess() : result;
+    }
+
+    /**
+     * Call taken from the buffer
+     */
+    private static class Queued {
+        Intent data;
+        XmppMetrics.ActionStats stats;
+        long start;
+    }
+
+    /**
+     * @param discarded filled with the call DROP_OLDEST discarded, if any
+     * @return null if data was queued, the error result otherwise
+     */
+    private Intent offer(final Intent data, final XmppMetrics.ActionStats stats, final long start, final Queued discarded) {
+        lock.lock();
+        try {
+            while (count == ring.length && !closed) {
+                switch (policy) {
+                    case BLOCK:
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return XmppUtils.getExceptionError(data, e);
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        discarded.data = ring[head];
+                        discarded.stats = ringStats[head];
+                        discarded.start = ringStarts[head];
+                        ring[head] = null;
+                        ringStats[head] = null;
+                        head = (head + 1) % ring.length;
+                        --count;
+                        if (++dropped % 100 == 1)
+                            Log.w(XmppServiceApi.TAG, "inbound dispatch queue full, dropped " + dropped + " calls so far");
+                        break;
+                    default:
+                        return XmppUtils.getError(XmppError.QUEUE_FULL, "inbound dispatch queue full");
+                }
+            }
+            if (closed)
+                return XmppUtils.getError(XmppError.GENERIC_ERROR, "inbound dispatch closed");
+            final int tail = (head + count) % ring.length;
+            ring[tail] = data;
+            ringStats[tail] = stats;
+            ringStarts[tail] = start;
+            ++count;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * @return false once closed and empty
+     */
+    private boolean take(final Queued call) {
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (closed)
+                    return false;
+                notEmpty.awaitUninterruptibly();
+            }
+            call.data = ring[head];
+            call.stats = ringStats[head];
+            call.start = ringStarts[head];
+            ring[head] = null;
+            ringStats[head] = null;
+            head = (head + 1) % ring.length;
+            --count;
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch(final Queued call) {
+        final Intent data = call.data;
+        Intent result = null;
+        try {
+            result = execute.execute(data, null, null);
+            if (result != null && result.getIntExtra(XmppPluginCallbackApi.RESULT_CODE, XmppPluginCallbackApi.RESULT_CODE_ERROR)
+                    == XmppPluginCallbackApi.RESULT_CODE_ERROR) {
+                final XmppError error = result.getParcelableExtra(XmppPluginCallbackApi.RESULT_ERROR);
+                Log.w(XmppServiceApi.TAG, "queued " + data.getAction() + " failed: " + (error == null ? null : error.getMessage()));
+            }
+        } catch (RuntimeException e) {
+            Log.e(XmppServiceApi.TAG, "Exception in queued " + data.getAction(), e);
+        } finally {
+            XmppMetrics.getIncoming().end(call.stats, call.start, data, result);
+            call.data = null;
+            call.stats = null;
+        }
+    }
+
+    /**
+     * @return calls waiting for a worker
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return calls discarded by DROP_OLDEST so far
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refuse new calls, workers exit once the queued ones are done
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.openintents.xmpp;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write sides of output pipes handed out by createOutputPipe, waiting for the execute call that uses them
+ *
+ * Keyed on calling pid and pipe id with all 64 bits, so ids never collide. Entries a caller never used are closed
+ * after the expiry time, or as soon as a binder linked with linkToDeath dies, so crashed callers cannot leak file
+ * descriptors.
+ */
+public class OutputPipeRegistry {
+
+    public static final long DEFAULT_EXPIRY_MILLIS = 60 * 1000;
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "XMPP API output pipe sweeper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static class Entry {
+        final ParcelFileDescriptor pipe;
+        final long created;
+
+        Entry(final ParcelFileDescriptor pipe) {
+            this.pipe = pipe;
+            this.created = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final long expiryMillis;
+    private final ConcurrentHashMap<Long, Entry> pipes = new ConcurrentHashMap<Long, Entry>();
+    // only sweep while there is something to sweep, so idle registries are not kept reachable by the sweeper
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+
+    private final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            sweepScheduled.set(false);
+            final long oldest = SystemClock.elapsedRealtime() - expiryMillis;
+            for (final Iterator<Map.Entry<Long, Entry>> it = pipes.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<Long, Entry> e = it.next();
+                if (e.getValue().created <= oldest && pipes.remove(e.getKey(), e.getValue())) {
+                    Log.w(XmppServiceApi.TAG, "closing output pipe " + getId(e.getKey()) + " of pid " + getPid(e.getKey()) + " never used by execute");
+                    close(e.getValue().pipe);
+                }
+            }
+            scheduleSweep();
+        }
+    };
+
+    public OutputPipeRegistry() {
+        this(DEFAULT_EXPIRY_MILLIS);
+    }
+
+    public OutputPipeRegistry(final long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+    }
+
+    private static long createKey(final int pid, final int id) {
+        return ((long) pid << 32) | ((long) id & 0xFFFFFFFFL);
+    }
+
+    private static int getPid(final long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int getId(final long key) {
+        return (int) key;
+    }
+
+    /**
+     * Keep writeSide until execute takes it, closing any pipe the same caller registered before with the same id
+     */
+    public void put(final int pid, final int id, final ParcelFileDescriptor writeSide) {
+        final Entry old = pipes.put(createKey(pid, id), new Entry(writeSide));
+        if (old != null)
+            close(old.pipe);
+        scheduleSweep();
+    }
+
+    /**
+     * @return write side registered by pid for id, which the caller now owns, or null if there is none
+     */
+    public ParcelFileDescriptor take(final int pid, final int id) {
+        final Entry e = pipes.remove(createKey(pid, id));
+        return e == null ? null : e.pipe;
+    }
+
+    /**
+     * Close every pipe registered by pid
+     */
+    public void releaseProcess(final int pid) {
+        for (final Iterator<Map.Entry<Long, Entry>> it = pipes.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Long, Entry> e = it.next();
+            if (getPid(e.getKey()) == pid && pipes.remove(e.getKey(), e.getValue()))
+                close(e.getValue().pipe);
+        }
+    }
+
+    /**
+     * Release the pipes of pid as soon as token, a binder living in that process, dies
+     * @return false if token is already dead, its pipes are released right away then
+     */
+    public boolean linkToDeath(final IBinder token, final int pid) {
+        try {
+            token.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    releaseProcess(pid);
+                }
+            }, 0);
+            return true;
+        } catch (RemoteException e) {
+            releaseProcess(pid);
+            return false;
+        }
+    }
+
+    /**
+     * @return number of pipes waiting for their execute call
+     */
+    public int size() {
+        return pipes.size();
+    }
+
+    private void scheduleSweep() {
+        if (!pipes.isEmpty() && sweepScheduled.compareAndSet(false, true))
+            sweeper.schedule(sweep, expiryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void close(final ParcelFileDescriptor p) {
+        try {
+            p.close();
+        } catch (IOException e) {
+            Log.e(XmppServiceApi.TAG, "IOException when closing output ParcelFileDescriptor", e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.util.Log;
+import org.openintents.xmpp.util.XmppFuture;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs provider requests on its own worker threads, queued per account and calling uid, so one busy caller cannot
+ * starve the others, set on ExecuteService with setScheduler
+ *
+ * Priorities, see XmppServiceApi.EXTRA_PRIORITY, take turns too, each running up to its priority weight of requests
+ * per turn, so callers can favour their interactive requests but, as the priority is up to them, can never starve
+ * lower priorities and other callers with it. Within a priority the queues take turns, each running as many requests
+ * per turn as the weight of its account.
+ */
+public class RequestScheduler {
+
+    public static final int DEFAULT_MAX_QUEUED_PER_CALLER = 1024;
+
+    private static final int PRIORITY_LEVELS = XmppServiceApi.PRIORITY_BULK + 1;
+
+    /**
+     * Requests each priority runs per turn while others are waiting, by default 8 interactive, 4 normal and 1 bulk
+     */
+    public static final int[] DEFAULT_PRIORITY_WEIGHTS = {8, 4, 1};
+
+    private static class FlowKey {
+        final String accountJid;
+        final int uid, priority;
+
+        FlowKey(final String accountJid, final int uid, final int priority) {
+            this.accountJid = accountJid;
+            this.uid = uid;
+            this.priority = priority;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof FlowKey))
+                return false;
+            final FlowKey k = (FlowKey) o;
+            return uid == k.uid && priority == k.priority &&
+                    (accountJid == null ? k.accountJid == null : accountJid.equals(k.accountJid));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (accountJid == null ? 0 : accountJid.hashCode()) + uid) + priority;
+        }
+    }
+
+    private static class Flow {
+        final FlowKey key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        int credits;
+
+        Flow(final FlowKey key, final int credits) {
+            this.key = key;
+            this.credits = credits;
+        }
+    }
+
+    private final int maxQueuedPerCaller;
+    private final List<ArrayDeque<Flow>> active = new ArrayList<ArrayDeque<Flow>>(PRIORITY_LEVELS);
+    private final Map<FlowKey, Flow> flows = new HashMap<FlowKey, Flow>();
+    private final Map<String, Integer> weights = new HashMap<String, Integer>();
+    private final Map<String, Integer> depths = new HashMap<String, Integer>();
+    private final int[] priorityWeights = DEFAULT_PRIORITY_WEIGHTS.clone();
+    // priority whose turn it is, and how many more requests it may run in this turn
+    private int turn;
+    private int turnCredits = priorityWeights[0];
+    private boolean shutdown;
+
+    public RequestScheduler(final int threads) {
+        this(threads, DEFAULT_MAX_QUEUED_PER_CALLER);
+    }
+
+    /**
+     * @param maxQueuedPerCaller requests queued per account, uid and priority beyond which new ones fail with
+     *                           QUEUE_FULL
+     */
+    public RequestScheduler(final int threads, final int maxQueuedPerCaller) {
+        this.maxQueuedPerCaller = maxQueuedPerCaller;
+        for (int i = 0; i < PRIORITY_LEVELS; ++i)
+            active.add(new ArrayDeque<Flow>());
+        for (int i = 0; i < threads; ++i) {
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable task;
+                    while ((task = take()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.e(XmppServiceApi.TAG, "Exception in scheduled request", e);
+                        }
+                    }
+                }
+            }, "XMPP API request scheduler " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Let accountJid run weight requests per turn instead of 1, takes effect on its next turn
+     */
+    public synchronized void setWeight(final String accountJid, final int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be at least 1");
+        weights.put(accountJid, weight);
+    }
+
+    /**
+     * Let priority run weight requests per turn while other priorities are waiting, takes effect on its next turn
+     */
+    public synchronized void setPriorityWeight(final int priority, final int weight) {
+        if (priority < 0 || priority >= PRIORITY_LEVELS)
+            throw new IllegalArgumentException("unknown priority " + priority);
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be at least 1");
+        priorityWeights[priority] = weight;
+    }
+
+    private int getWeight(final String accountJid) {
+        final Integer weight = weights.get(accountJid);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * Queue call behind the other requests of the same account, uid and priority
+     * @return completes with the result of call, or right away with QUEUE_FULL or an error if shut down
+     */
+    public XmppFuture submit(final String accountJid, final int uid, final int priority, final Callable<Intent> call) {
+        final XmppFuture future = new XmppFuture();
+        final FlowKey key = new FlowKey(accountJid, uid, Math.max(0, Math.min(priority, PRIORITY_LEVELS - 1)));
+        synchronized (this) {
+            if (shutdown) {
+                future.complete(XmppUtils.getError(XmppError.GENERIC_ERROR, "scheduler shut down"));
+                return future;
+            }
+            Flow flow = flows.get(key);
+            if (flow == null) {
+                flow = new Flow(key, getWeight(accountJid));
+                flows.put(key, flow);
+                active.get(key.priority).add(flow);
+            } else if (flow.tasks.size() >= maxQueuedPerCaller) {
+                future.complete(XmppUtils.getError(XmppError.QUEUE_FULL, "too many queued requests for " + accountJid));
+                return future;
+            }
+            flow.tasks.add(future.asTask(call));
+            addDepth(accountJid, 1);
+            notify();
+        }
+        return future;
+    }
+
+    private synchronized Runnable take() {
+        while (true) {
+            for (int i = 0; i < PRIORITY_LEVELS; ++i) {
+                final int priority = (turn + i) % PRIORITY_LEVELS;
+                final Runnable task = poll(active.get(priority));
+                if (task == null)
+                    continue;
+                if (i > 0) {
+                    // the priorities before had nothing waiting, this one starts a fresh turn
+                    turn = priority;
+                    turnCredits = priorityWeights[priority];
+                }
+                if (--turnCredits <= 0) {
+                    turn = (priority + 1) % PRIORITY_LEVELS;
+                    turnCredits = priorityWeights[turn];
+                }
+                return task;
+            }
+            if (shutdown)
+                return null;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    private Runnable poll(final ArrayDeque<Flow> ring) {
+        final Flow flow = ring.peek();
+        if (flow == null)
+            return null;
+        final Runnable task = flow.tasks.poll();
+        if (flow.tasks.isEmpty()) {
+            // idle flows are dropped, a new one gets a full turn when its caller is back
+            ring.poll();
+            flows.remove(flow.key);
+        } else if (--flow.credits <= 0) {
+            ring.poll();
+            ring.add(flow);
+            flow.credits = getWeight(flow.key.accountJid);
+        }
+        addDepth(flow.key.accountJid, -1);
+        return task;
+    }
+
+    private void addDepth(final String accountJid, final int delta) {
+        final Integer depth = depths.get(accountJid);
+        final int newDepth = (depth == null ? 0 : depth) + delta;
+        if (newDepth == 0)
+            depths.remove(accountJid);
+        else
+            depths.put(accountJid, newDepth);
+    }
+
+    /**
+     * @return requests of accountJid waiting to run, over all callers and priorities
+     */
+    public synchronized int getQueueDepth(final String accountJid) {
+        final Integer depth = depths.get(accountJid);
+        return depth == null ? 0 : depth;
+    }
+
+    /**
+     * @return copy of the queue depth of every account with waiting requests
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        return new HashMap<String, Integer>(depths);
+    }
+
+    /**
+     * Stop accepting requests, workers exit once the queued ones have run
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+}
@@ -35,28 +35,92 @@ public class XmppError implements Parcelable {
     public static final int GENERIC_ERROR = 0;
     public static final int INCOMPATIBLE_API_VERSIONS = 1;
     public static final int NO_ACCOUNT_JIDS = 2;
+    public static final int TIMEOUT = 3;
+    public static final int QUEUE_FULL = 4;
+    public static final int REMOTE_DIED = 5;
+    public static final int ACCOUNT_OFFLINE = 6;
+    public static final int RATE_LIMITED = 7;
+    public static final int NOT_AUTHORIZED = 8;
+    public static final int TOO_LARGE = 9;
+    public static final int BAD_REQUEST = 10;
+    public static final int NOT_SUPPORTED = 11;
+    public static final int CANCELLED = 12;
+
+    private static final String[] NAMES = {
+            "client side error", "generic error", "incompatible api versions", "no account jids", "timeout",
+            "queue full", "remote died", "account offline", "rate limited", "not authorized", "too large",
+            "bad request", "not supported", "cancelled"
+    };
+
+    // one immutable instance per known errorId, indexed by errorId - CLIENT_SIDE_ERROR
+    private static final XmppError[] SHARED = new XmppError[NAMES.length];
 
+    static {
+        for (int i = 0; i < SHARED.length; ++i)
+            SHARED[i] = new XmppError(i + CLIENT_SIDE_ERROR, NAMES[i], true);
+    }
 
     private int errorId;
     private String message, stacktrace;
+    private final boolean immutable;
 
     public XmppError() {
+        this.immutable = false;
     }
 
-    public XmppError(final int errorId, final String message) {
+    private XmppError(final int errorId, final String message, final boolean immutable) {
         this.errorId = errorId;
         this.message = message;
+        this.immutable = immutable;
+    }
+
+    public XmppError(final int errorId, final String message) {
+        this(errorId, message, false);
     }
 
+    /**
+     * Error with the message and full stack trace of e, rendering the trace is costly, see XmppUtils.getExceptionError
+     * for when to include it
+     */
     public XmppError(final int errorId, final Throwable e) {
-        this.errorId = errorId;
-        this.message = e.getMessage();
+        this(errorId, e.getMessage(), false);
         setStacktrace(e);
     }
 
+    /**
+     * Mutable copy of b, without its stack trace
+     */
     public XmppError(XmppError b) {
-        this.errorId = b.errorId;
-        this.message = b.message;
+        this(b.errorId, b.message, false);
+    }
+
+    /**
+     * @return an immutable instance shared by everyone returning errorId, with a fixed message and no stack trace,
+     * a new one if errorId is not in this catalog
+     */
+    public static XmppError getShared(final int errorId) {
+        final int i = errorId - CLIENT_SIDE_ERROR;
+        return i >= 0 && i < SHARED.length ? SHARED[i] : new XmppError(errorId, getErrorName(errorId), true);
+    }
+
+    /**
+     * @return short description of errorId, for logs
+     */
+    public static String getErrorName(final int errorId) {
+        final int i = errorId - CLIENT_SIDE_ERROR;
+        return i >= 0 && i < NAMES.length ? NAMES[i] : "error " + errorId;
+    }
+
+    /**
+     * @return true for the instances from getShared, their setters throw UnsupportedOperationException
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    private void checkMutable() {
+        if (immutable)
+            throw new UnsupportedOperationException("shared XmppError can not be changed, copy it first");
     }
 
     public int getErrorId() {
@@ -64,6 +128,7 @@ public class XmppError implements Parcelable {
     }
 
     public XmppError setErrorId(int errorId) {
+        checkMutable();
         this.errorId = errorId;
         return this;
     }
@@ -73,6 +138,7 @@ public class XmppError implements Parcelable {
     }
 
     public XmppError setMessage(String message) {
+        checkMutable();
         this.message = message;
         return this;
     }
@@ -82,17 +148,25 @@ public class XmppError implements Parcelable {
     }
 
     public XmppError setStacktrace(final String stacktrace) {
+        checkMutable();
         this.stacktrace = stacktrace;
         return this;
     }
 
     public XmppError setStacktrace(final Throwable e) {
+        checkMutable();
         final StringWriter stacktrace = new StringWriter();
         e.printStackTrace(new PrintWriter(stacktrace));
         this.stacktrace = stacktrace.toString();
         return this;
     }
 
+    @Override
+    public String toString() {
+        final String name = getErrorName(errorId);
+        return message == null || message.equals(name) ? name : name + ": " + message;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -0,0 +1,231 @@
+package org.openintents.xmpp;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.Parcelable;
+import org.openintents.xmpp.util.Jid;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+/**
+ * ACTION_NEW_MESSAGE as a single Parcelable in EXTRA_MESSAGE, fields at fixed positions instead of one named
+ * Bundle entry each, and each distinct JID written once
+ *
+ * Peers registered with EXTRA_API_VERSION 1 only understand the separate extras, toIntent(XmppPluginCallbackApi) picks
+ * the form each registered callback understands.
+ * Receivers should always read with fromIntent, which handles both forms.
+ */
+public class XmppMessage implements Parcelable {
+    /**
+     * Since there might be a case where new versions of the client using the library getting
+     * old versions of the protocol (and thus old versions of this class), we need a versioning
+     * system for the parcels sent between the clients and the providers.
+     */
+    public static final int PARCELABLE_VERSION = 1;
+
+    /**
+     * First API_VERSION whose peers understand EXTRA_MESSAGE
+     */
+    public static final int MIN_API_VERSION = 2;
+
+    // JID references are packed 2 bits each into one int, with the table size above them
+    private static final int REF_BITS = 2;
+    private static final int REF_MASK = (1 << REF_BITS) - 1;
+    private static final int REF_NULL = REF_MASK;
+    private static final int JID_COUNT = 3;
+
+    String accountJid;
+    String from;
+    String to;
+    String body;
+    int status;
+
+    public XmppMessage() {
+    }
+
+    public XmppMessage(String accountJid, String from, String to, String body, int status) {
+        this.accountJid = accountJid;
+        this.from = from;
+        this.to = to;
+        this.body = body;
+        this.status = status;
+    }
+
+    public XmppMessage(XmppMessage b) {
+        this.accountJid = b.accountJid;
+        this.from = b.from;
+        this.to = b.to;
+        this.body = b.body;
+        this.status = b.status;
+    }
+
+    public String getAccountJid() {
+        return accountJid;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return from as a parsed, pooled Jid, null if there is none or it is malformed
+     */
+    public Jid getFromJid() {
+        return Jid.parse(from);
+    }
+
+    /**
+     * @return to as a parsed, pooled Jid, null if there is none or it is malformed
+     */
+    public Jid getToJid() {
+        return Jid.parse(to);
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if a peer registered with apiVersion can read toIntent(true)
+     */
+    public static boolean isCompactSupported(final int apiVersion) {
+        return apiVersion >= MIN_API_VERSION;
+    }
+
+    /**
+     * @return ACTION_NEW_MESSAGE Intent for this message, in the form callback registered for
+     */
+    public Intent toIntent(final XmppPluginCallbackApi callback) {
+        return toIntent(callback.isCompactSupported());
+    }
+
+    /**
+     * @param compact true to carry only EXTRA_MESSAGE, false for the separate extras every peer understands
+     * @return ACTION_NEW_MESSAGE Intent for this message
+     */
+    public Intent toIntent(final boolean compact) {
+        final Intent data = new Intent(XmppPluginCallbackApi.ACTION_NEW_MESSAGE);
+        if (compact) {
+            data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE, this);
+        } else {
+            data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
+            data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM, from);
+            data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO, to);
+            data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY, body);
+            data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_STATUS, status);
+        }
+        return data;
+    }
+
+    /**
+     * @param data ACTION_NEW_MESSAGE Intent in either form
+     */
+    public static XmppMessage fromIntent(final Intent data) {
+        // Intents arriving over binder unparcel with the boot class loader, which does not know this class
+        data.setExtrasClassLoader(XmppMessage.class.getClassLoader());
+        final XmppMessage message = data.getParcelableExtra(XmppPluginCallbackApi.EXTRA_MESSAGE);
+        if (message != null)
+            return message;
+        return new XmppMessage(data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM),
+                data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO),
+                data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY),
+                data.getIntExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_STATUS, 0));
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        /**
+         * NOTE: When adding fields in the process of updating this API, make sure to bump
+         * {@link #PARCELABLE_VERSION}.
+         */
+        dest.writeInt(PARCELABLE_VERSION);
+        // Inject a placeholder that will store the parcel size from this point on
+        // (not including the size itself).
+        int sizePosition = dest.dataPosition();
+        dest.writeInt(0);
+        int startPosition = dest.dataPosition();
+        // version 1
+        dest.writeInt(status);
+        // the account usually is from or to, so write each distinct JID once and refer to it by index
+        final String[] jids = {accountJid, from, to};
+        final String[] table = new String[JID_COUNT];
+        int size = 0;
+        int refs = 0;
+        for (int i = 0; i < JID_COUNT; ++i) {
+            int ref = REF_NULL;
+            if (jids[i] != null) {
+                for (ref = 0; ref < size && !table[ref].equals(jids[i]); ++ref)
+                    ;
+                if (ref == size)
+                    table[size++] = jids[i];
+            }
+            refs |= ref << (i * REF_BITS);
+        }
+        dest.writeInt(refs | size << (JID_COUNT * REF_BITS));
+        for (int i = 0; i < size; ++i)
+            dest.writeString(table[i]);
+        dest.writeString(body);
+        // Go back and write the size
+        int parcelableSize = dest.dataPosition() - startPosition;
+        dest.setDataPosition(sizePosition);
+        dest.writeInt(parcelableSize);
+        dest.setDataPosition(startPosition + parcelableSize);
+    }
+
+    public static final Creator<XmppMessage> CREATOR = new Creator<XmppMessage>() {
+        public XmppMessage createFromParcel(final Parcel source) {
+            source.readInt(); // parcelableVersion
+            final int parcelableSize = source.readInt();
+            final int startPosition = source.dataPosition();
+
+            XmppMessage m = new XmppMessage();
+            m.status = source.readInt();
+            final int refs = source.readInt();
+            final int size = refs >>> (JID_COUNT * REF_BITS);
+            final String[] table = new String[size];
+            for (int i = 0; i < size; ++i)
+                table[i] = source.readString();
+            m.accountJid = getJid(table, refs, 0);
+            m.from = getJid(table, refs, 1);
+            m.to = getJid(table, refs, 2);
+            m.body = source.readString();
+
+            // skip over all fields added in future versions of this parcel
+            source.setDataPosition(startPosition + parcelableSize);
+
+            return m;
+        }
+
+        public XmppMessage[] newArray(final int size) {
+            return new XmppMessage[size];
+        }
+    };
+
+    private static String getJid(final String[] table, final int refs, final int field) {
+        final int ref = (refs >>> (field * REF_BITS)) & REF_MASK;
+        return ref == REF_NULL ? null : table[ref];
+    }
+
+    @Override
+    public String toString() {
+        String out = "\naccountJid: " + accountJid;
+        out += "\nfrom: " + from;
+        out += "\nto: " + to;
+        out += "\nbody: " + body;
+        out += "\nstatus: " + status;
+        return out;
+    }
+
+}
@@ -5,6 +5,8 @@ import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
+import java.util.NoSuchElementException;
+
 public class XmppPluginCallback implements IXmppPluginCallback, IExecuteService {
 
     private final IXmppPluginCallback delegate;
@@ -21,6 +23,31 @@ public class XmppPluginCallback implements IXmppPluginCallback, IExecuteService
         return delegate;
     }
 
+    /**
+     * Get told when the plugin process dies, to stop dispatching to it and release what it held
+     * @return false if it is already dead, recipient will never be called then
+     */
+    public boolean linkToDeath(final IBinder.DeathRecipient recipient) {
+        try {
+            delegate.asBinder().linkToDeath(recipient, 0);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    public void unlinkToDeath(final IBinder.DeathRecipient recipient) {
+        try {
+            delegate.asBinder().unlinkToDeath(recipient, 0);
+        } catch (NoSuchElementException ignored) {
+            // never linked, or already unlinked by its death
+        }
+    }
+
+    public boolean isAlive() {
+        return delegate.asBinder().isBinderAlive();
+    }
+
     @Override
     public ParcelFileDescriptor createOutputPipe(final int pipeId) throws RemoteException {
         return delegate.createOutputPipe(pipeId);
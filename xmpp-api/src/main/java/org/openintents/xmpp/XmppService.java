@@ -36,6 +36,12 @@ public class XmppService implements IXmppService, IExecuteService {
         return delegate.callback(data, callback);
     }
 
+    @Override
+    public void executeAsync(final long requestId, final Intent data, final ParcelFileDescriptor input,
+                             final ParcelFileDescriptor output, final IXmppResultCallback callback) throws RemoteException {
+        delegate.executeAsync(requestId, data, input, output, callback);
+    }
+
     @Override
     public IBinder asBinder() {
         return delegate.asBinder();
@@ -0,0 +1,338 @@
+package org.openintents.xmpp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of XmppMetrics, returned in RESULT_STATS by ACTION_GET_STATS
+ *
+ * Histograms are reduced to a few percentiles, latencies are in nanoseconds and sizes in bytes.
+ */
+public class XmppStats implements Parcelable {
+    /**
+     * Since there might be a case where new versions of the client using the library getting
+     * old versions of the protocol (and thus old versions of this class), we need a versioning
+     * system for the parcels sent between the clients and the providers.
+     */
+    public static final int PARCELABLE_VERSION = 1;
+
+    /**
+     * Entry for calls this process served, through ExecuteService
+     */
+    public static final int DIRECTION_INCOMING = 0;
+    /**
+     * Entry for calls this process made, through executeApi or callbackApi
+     */
+    public static final int DIRECTION_OUTGOING = 1;
+
+    /**
+     * Calls of one action for one account, going one direction
+     */
+    public static class Entry {
+        int direction;
+        String action;
+        String accountJid;
+        long count, errors;
+        int inFlight;
+        long latencyMean, latencyP50, latencyP90, latencyP99, latencyP999, latencyMax;
+        long requestSizeP50 = -1, requestSizeMax = -1, resultSizeP50 = -1, resultSizeMax = -1;
+
+        Entry() {
+        }
+
+        public Entry(int direction, String action, String accountJid, long count, long errors, int inFlight) {
+            this.direction = direction;
+            this.action = action;
+            this.accountJid = accountJid;
+            this.count = count;
+            this.errors = errors;
+            this.inFlight = inFlight;
+        }
+
+        public Entry setLatency(long mean, long p50, long p90, long p99, long p999, long max) {
+            this.latencyMean = mean;
+            this.latencyP50 = p50;
+            this.latencyP90 = p90;
+            this.latencyP99 = p99;
+            this.latencyP999 = p999;
+            this.latencyMax = max;
+            return this;
+        }
+
+        public Entry setSizes(long requestSizeP50, long requestSizeMax, long resultSizeP50, long resultSizeMax) {
+            this.requestSizeP50 = requestSizeP50;
+            this.requestSizeMax = requestSizeMax;
+            this.resultSizeP50 = resultSizeP50;
+            this.resultSizeMax = resultSizeMax;
+            return this;
+        }
+
+        /**
+         * @return DIRECTION_INCOMING or DIRECTION_OUTGOING
+         */
+        public int getDirection() {
+            return direction;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * @return null for calls without EXTRA_ACCOUNT_JID
+         */
+        public String getAccountJid() {
+            return accountJid;
+        }
+
+        /**
+         * @return completed calls
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return completed calls that returned RESULT_CODE_ERROR
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return calls started but not completed when the snapshot was taken
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getLatencyMean() {
+            return latencyMean;
+        }
+
+        public long getLatencyP50() {
+            return latencyP50;
+        }
+
+        public long getLatencyP90() {
+            return latencyP90;
+        }
+
+        public long getLatencyP99() {
+            return latencyP99;
+        }
+
+        public long getLatencyP999() {
+            return latencyP999;
+        }
+
+        public long getLatencyMax() {
+            return latencyMax;
+        }
+
+        /**
+         * @return median parcelled size of the request Intent, -1 unless XmppMetrics.setMeasureParcelSizes is on
+         */
+        public long getRequestSizeP50() {
+            return requestSizeP50;
+        }
+
+        public long getRequestSizeMax() {
+            return requestSizeMax;
+        }
+
+        /**
+         * @return median parcelled size of the result Intent, -1 unless XmppMetrics.setMeasureParcelSizes is on
+         */
+        public long getResultSizeP50() {
+            return resultSizeP50;
+        }
+
+        public long getResultSizeMax() {
+            return resultSizeMax;
+        }
+
+        void writeToParcel(Parcel dest) {
+            dest.writeInt(direction);
+            dest.writeString(action);
+            dest.writeString(accountJid);
+            dest.writeLong(count);
+            dest.writeLong(errors);
+            dest.writeInt(inFlight);
+            dest.writeLong(latencyMean);
+            dest.writeLong(latencyP50);
+            dest.writeLong(latencyP90);
+            dest.writeLong(latencyP99);
+            dest.writeLong(latencyP999);
+            dest.writeLong(latencyMax);
+            dest.writeLong(requestSizeP50);
+            dest.writeLong(requestSizeMax);
+            dest.writeLong(resultSizeP50);
+            dest.writeLong(resultSizeMax);
+        }
+
+        static Entry readFromParcel(Parcel source) {
+            final Entry e = new Entry();
+            e.direction = source.readInt();
+            e.action = source.readString();
+            e.accountJid = source.readString();
+            e.count = source.readLong();
+            e.errors = source.readLong();
+            e.inFlight = source.readInt();
+            e.latencyMean = source.readLong();
+            e.latencyP50 = source.readLong();
+            e.latencyP90 = source.readLong();
+            e.latencyP99 = source.readLong();
+            e.latencyP999 = source.readLong();
+            e.latencyMax = source.readLong();
+            e.requestSizeP50 = source.readLong();
+            e.requestSizeMax = source.readLong();
+            e.resultSizeP50 = source.readLong();
+            e.resultSizeMax = source.readLong();
+            return e;
+        }
+
+        @Override
+        public String toString() {
+            return (direction == DIRECTION_INCOMING ? "in  " : "out ") + action + (accountJid == null ? "" : " " + accountJid)
+                    + ": count " + count + ", errors " + errors + ", in flight " + inFlight
+                    + ", latency us mean " + latencyMean / 1000 + " p50 " + latencyP50 / 1000 + " p90 " + latencyP90 / 1000
+                    + " p99 " + latencyP99 / 1000 + " p999 " + latencyP999 / 1000 + " max " + latencyMax / 1000
+                    + (requestSizeP50 < 0 ? "" : ", request bytes p50 " + requestSizeP50 + " max " + requestSizeMax
+                    + ", result bytes p50 " + resultSizeP50 + " max " + resultSizeMax);
+        }
+    }
+
+    List<Entry> entries = new ArrayList<Entry>();
+    long pipeBytes, pipeTransfers;
+    long pipeTransferP50, pipeTransferP99, pipeTransferMax;
+
+    public XmppStats() {
+    }
+
+    public XmppStats(List<Entry> entries, long pipeBytes, long pipeTransfers,
+                     long pipeTransferP50, long pipeTransferP99, long pipeTransferMax) {
+        this.entries = entries;
+        this.pipeBytes = pipeBytes;
+        this.pipeTransfers = pipeTransfers;
+        this.pipeTransferP50 = pipeTransferP50;
+        this.pipeTransferP99 = pipeTransferP99;
+        this.pipeTransferMax = pipeTransferMax;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the entry for action and accountJid going direction, null if there were no such calls
+     */
+    public Entry getEntry(final int direction, final String action, final String accountJid) {
+        for (final Entry e : entries)
+            if (e.direction == direction && equals(e.action, action) && equals(e.accountJid, accountJid))
+                return e;
+        return null;
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return bytes moved by completed pipe transfers of this process
+     */
+    public long getPipeBytes() {
+        return pipeBytes;
+    }
+
+    public long getPipeTransfers() {
+        return pipeTransfers;
+    }
+
+    /**
+     * @return median duration of a pipe transfer from its first read to its end of stream
+     */
+    public long getPipeTransferP50() {
+        return pipeTransferP50;
+    }
+
+    public long getPipeTransferP99() {
+        return pipeTransferP99;
+    }
+
+    public long getPipeTransferMax() {
+        return pipeTransferMax;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        /**
+         * NOTE: When adding fields in the process of updating this API, make sure to bump
+         * {@link #PARCELABLE_VERSION}.
+         */
+        dest.writeInt(PARCELABLE_VERSION);
+        // Inject a placeholder that will store the parcel size from this point on
+        // (not including the size itself).
+        int sizePosition = dest.dataPosition();
+        dest.writeInt(0);
+        int startPosition = dest.dataPosition();
+        // version 1
+        dest.writeLong(pipeBytes);
+        dest.writeLong(pipeTransfers);
+        dest.writeLong(pipeTransferP50);
+        dest.writeLong(pipeTransferP99);
+        dest.writeLong(pipeTransferMax);
+        dest.writeInt(entries.size());
+        for (final Entry e : entries)
+            e.writeToParcel(dest);
+        // Go back and write the size
+        int parcelableSize = dest.dataPosition() - startPosition;
+        dest.setDataPosition(sizePosition);
+        dest.writeInt(parcelableSize);
+        dest.setDataPosition(startPosition + parcelableSize);
+    }
+
+    public static final Creator<XmppStats> CREATOR = new Creator<XmppStats>() {
+        public XmppStats createFromParcel(final Parcel source) {
+            source.readInt(); // parcelableVersion
+            int parcelableSize = source.readInt();
+            int startPosition = source.dataPosition();
+
+            XmppStats stats = new XmppStats();
+            stats.pipeBytes = source.readLong();
+            stats.pipeTransfers = source.readLong();
+            stats.pipeTransferP50 = source.readLong();
+            stats.pipeTransferP99 = source.readLong();
+            stats.pipeTransferMax = source.readLong();
+            final int count = source.readInt();
+            stats.entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; ++i)
+                stats.entries.add(Entry.readFromParcel(source));
+
+            // skip over all fields added in future versions of this parcel
+            source.setDataPosition(startPosition + parcelableSize);
+
+            return stats;
+        }
+
+        public XmppStats[] newArray(final int size) {
+            return new XmppStats[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        String out = "pipes: " + pipeTransfers + " transfers, " + pipeBytes + " bytes, us p50 " + pipeTransferP50 / 1000
+                + " p99 " + pipeTransferP99 / 1000 + " max " + pipeTransferMax / 1000;
+        for (final Entry e : entries)
+            out += "\n" + e;
+        return out;
+    }
+}
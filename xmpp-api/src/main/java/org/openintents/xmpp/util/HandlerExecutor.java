@@ -0,0 +1,36 @@
+package org.openintents.xmpp.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a Looper thread, use with XmppFuture.addCallback to get results on the main thread or any
+ * other HandlerThread
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    public HandlerExecutor(final Looper looper) {
+        this(new Handler(looper));
+    }
+
+    public HandlerExecutor(final Handler handler) {
+        if (handler == null)
+            throw new NullPointerException("handler must be non-null");
+        this.handler = handler;
+    }
+
+    public static HandlerExecutor mainThread() {
+        return new HandlerExecutor(Looper.getMainLooper());
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (!handler.post(command))
+            throw new RejectedExecutionException(handler.getLooper() + " is exiting");
+    }
+}
@@ -0,0 +1,116 @@
+package org.openintents.xmpp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear histogram of non-negative values, like latencies in nanoseconds or sizes in bytes
+ *
+ * Each power of two is split into 32 linear buckets, so any recorded value is reported within about 3% of itself,
+ * using a fixed 8KB no matter how many values are recorded. Values from 2^36 on, over a minute in nanoseconds, all
+ * land in the last bucket, max still reports them exactly.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // lost a race with another larger value, try again
+        }
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        // the bits right below the leading one pick the linear bucket within this power of two
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that lands in bucket index
+     */
+    static long highestValue(final int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return average of all recorded values, 0 if there are none
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Values recorded while this runs may or may not be taken into account
+     * @param percentile 50 for the median, 99.9 for p999
+     * @return highest value equivalent to the one at percentile, never more than max, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * @param percentiles as for getValueAtPercentile, in ascending order
+     * @return the value at each percentile, reading the buckets only once
+     */
+    public long[] getValuesAtPercentiles(final double... percentiles) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+            total += snapshot[i] = counts.get(i);
+        final long[] values = new long[percentiles.length];
+        if (total == 0)
+            return values;
+        final long currentMax = max.get();
+        long seen = 0;
+        int i = 0;
+        for (int p = 0; p < percentiles.length; ++p) {
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentiles[p]) / 100 * total));
+            while (i < BUCKETS - 1 && seen + snapshot[i] < rank)
+                seen += snapshot[i++];
+            // the last bucket has no upper bound
+            values[p] = i == BUCKETS - 1 ? currentMax : Math.min(highestValue(i), currentMax);
+        }
+        return values;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
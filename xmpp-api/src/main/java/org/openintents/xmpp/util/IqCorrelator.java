@@ -0,0 +1,173 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import org.openintents.xmpp.AbstractXmppPluginCallback;
+import org.openintents.xmpp.XmppError;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.openintents.xmpp.util.XmppPluginCallbackApi.*;
+
+/**
+ * Sends IQs with ACTION_SEND_RAW_XML using itself as the plugin callback, and completes the returned future with
+ * the matching ACTION_IQ_RESPONSE, matched on account and stanza id, or with a TIMEOUT error
+ *
+ * The pending table is bounded, sends beyond maxPending fail right away with QUEUE_FULL, and every entry is
+ * removed on response, timeout or cancel, so lost responses never leak.
+ * Usually obtained from XmppServiceApi.sendIq rather than created directly.
+ */
+public class IqCorrelator extends AbstractXmppPluginCallback {
+
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static final AtomicLong idGen = new AtomicLong();
+
+    private static final TimerWheel timerWheel = new TimerWheel("XMPP API IQ timeouts", 100, TimeUnit.MILLISECONDS, 512);
+
+    // makes the callbackApi calls, so sendIq never blocks its caller on the provider
+    private static final ExecutorService sendExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "XMPP API IQ send");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final XmppServiceApi api;
+    private final Semaphore available;
+    private final ConcurrentHashMap<String, PendingIq> pending = new ConcurrentHashMap<String, PendingIq>();
+
+    private class PendingIq extends XmppFuture implements Runnable {
+        final String key;
+        // set right after the entry is published, a response may already be removing it by then
+        volatile TimerWheel.Timeout timeout;
+
+        PendingIq(final String key) {
+            this.key = key;
+        }
+
+        /**
+         * Remove from the pending table, only once
+         */
+        boolean remove() {
+            if (!pending.remove(key, this))
+                return false;
+            available.release();
+            if (timeout != null)
+                timeout.cancel();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // timed out
+            if (remove())
+                complete(XmppUtils.getError(XmppError.TIMEOUT, "no response to IQ " + key));
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            remove();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    public IqCorrelator(final XmppServiceApi api) {
+        this(api, DEFAULT_MAX_PENDING);
+    }
+
+    public IqCorrelator(final XmppServiceApi api, final int maxPending) {
+        if (api == null)
+            throw new NullPointerException("api must be non-null");
+        this.api = api;
+        this.available = new Semaphore(maxPending);
+    }
+
+    /**
+     * @return a stanza id unique within this process, for IQs that do not have one yet
+     */
+    public static String nextId() {
+        return "xmpp-api-" + idGen.incrementAndGet();
+    }
+
+    /**
+     * Never blocks, the IQ is sent on a background thread
+     * @param iqXml a complete IQ stanza with an id attribute
+     * @return completes with RESULT_CODE_SUCCESS and the response in EXTRA_RAW_XML, or with an error result if
+     * sending failed, there was no response within timeout, or too many IQs are pending
+     */
+    public XmppFuture sendIq(final String accountJid, final String iqXml, final long timeout, final TimeUnit unit) {
+        final XmppFuture failed = new XmppFuture();
+        final String id = StanzaReader.getRootAttribute(iqXml, "id");
+        if (id == null) {
+            failed.complete(XmppUtils.getError(XmppError.CLIENT_SIDE_ERROR, "IQ has no id attribute"));
+            return failed;
+        }
+        if (!available.tryAcquire()) {
+            failed.complete(XmppUtils.getError(XmppError.QUEUE_FULL, "too many pending IQs"));
+            return failed;
+        }
+        final PendingIq iq = new PendingIq(getKey(accountJid, id));
+        if (pending.putIfAbsent(iq.key, iq) != null) {
+            available.release();
+            failed.complete(XmppUtils.getError(XmppError.CLIENT_SIDE_ERROR, "IQ id already pending: " + id));
+            return failed;
+        }
+        final TimerWheel.Timeout scheduled = timerWheel.schedule(iq, timeout, unit);
+        iq.timeout = scheduled;
+        if (pending.get(iq.key) != iq)
+            scheduled.cancel(); // answered before the timeout was set, remove could not cancel it
+
+        final Intent data = new Intent(XmppServiceApi.ACTION_SEND_RAW_XML);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
+        data.putExtra(XmppServiceApi.EXTRA_RAW_XML, iqXml);
+        api.callbackApiFuture(data, this, sendExecutor).addCallback(new IXmppCallback() {
+            @Override
+            public void onReturn(final Intent result) {
+                if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) != RESULT_CODE_SUCCESS && iq.remove())
+                    iq.complete(result);
+            }
+        }, XmppFuture.DIRECT_EXECUTOR);
+        return iq;
+    }
+
+    /**
+     * @return number of IQs waiting for a response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
+        if (!ACTION_IQ_RESPONSE.equals(data.getAction()))
+            return XmppUtils.getError(XmppError.NOT_SUPPORTED, "unsupported action: " + data.getAction());
+        final String accountJid = data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID);
+        final String rawXml = data.getStringExtra(XmppServiceApi.EXTRA_RAW_XML);
+        final String id = StanzaReader.getRootAttribute(rawXml, "id");
+        final PendingIq iq = id == null ? null : pending.get(getKey(accountJid, id));
+        if (iq != null && iq.remove()) {
+            final Intent result = XmppUtils.getSuccess();
+            result.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
+            result.putExtra(XmppServiceApi.EXTRA_RAW_XML, rawXml);
+            iq.complete(result);
+        }
+        // late responses to timed out IQs are simply dropped
+        return XmppUtils.getSuccess();
+    }
+
+    private static String getKey(final String accountJid, final String id) {
+        return accountJid + ' ' + id;
+    }
+}
@@ -0,0 +1,169 @@
+package org.openintents.xmpp.util;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable JID split into local part, domain and resource once, with its hash computed once
+ *
+ * Jid.of interns through a small bounded cache of weak references, so the JIDs a busy account sees over and over
+ * are parsed once and shared, while JIDs nobody holds anymore can still be collected. Parts are kept as given,
+ * without stringprep normalization.
+ */
+public final class Jid implements Parcelable {
+
+    private static final int POOL_SIZE = 1024; // power of 2
+
+    private static final AtomicReferenceArray<WeakReference<Jid>> pool = new AtomicReferenceArray<WeakReference<Jid>>(POOL_SIZE);
+
+    private final String jid, localPart, domain, resource;
+    private final int hash;
+    private Jid bare;
+
+    private Jid(final String jid, final String localPart, final String domain, final String resource) {
+        this.jid = jid;
+        this.localPart = localPart;
+        this.domain = domain;
+        this.resource = resource;
+        this.hash = jid.hashCode();
+    }
+
+    /**
+     * @return the Jid for jid, the same instance as earlier calls while it is still in the pool, null if jid is null
+     * @throws IllegalArgumentException if jid has an empty domain, or an empty local part or resource where their
+     * separators are present
+     */
+    public static Jid of(final String jid) {
+        final Jid parsed = parse(jid);
+        if (parsed == null && jid != null)
+            throw new IllegalArgumentException("invalid JID: " + jid);
+        return parsed;
+    }
+
+    /**
+     * Like of, for JIDs from the network or another process, which may be malformed
+     * @return the Jid for jid, null if jid is null or not a valid JID
+     */
+    public static Jid parse(final String jid) {
+        if (jid == null)
+            return null;
+        final int slot = (jid.hashCode() ^ (jid.hashCode() >>> 16)) & (POOL_SIZE - 1);
+        final WeakReference<Jid> ref = pool.get(slot);
+        final Jid pooled = ref == null ? null : ref.get();
+        if (pooled != null && pooled.jid.equals(jid))
+            return pooled;
+        final Jid parsed = split(jid);
+        // last one wins on collisions, the pool is a cache and may forget
+        if (parsed != null)
+            pool.set(slot, new WeakReference<Jid>(parsed));
+        return parsed;
+    }
+
+    /**
+     * @param localPart may be null
+     * @param resource may be null
+     */
+    public static Jid of(final String localPart, final String domain, final String resource) {
+        final StringBuilder sb = new StringBuilder();
+        if (localPart != null)
+            sb.append(localPart).append('@');
+        sb.append(domain);
+        if (resource != null)
+            sb.append('/').append(resource);
+        return of(sb.toString());
+    }
+
+    /**
+     * @return null if jid is invalid
+     */
+    private static Jid split(final String jid) {
+        // the resource may contain '@' and '/', so it is split off first
+        final int slash = jid.indexOf('/');
+        final int domainEnd = slash == -1 ? jid.length() : slash;
+        final int at = jid.lastIndexOf('@', domainEnd - 1);
+        final String localPart = at == -1 ? null : jid.substring(0, at);
+        final String domain = jid.substring(at + 1, domainEnd);
+        final String resource = slash == -1 ? null : jid.substring(slash + 1);
+        if (domain.length() == 0 || (localPart != null && localPart.length() == 0) || (resource != null && resource.length() == 0))
+            return null;
+        return new Jid(jid, localPart, domain, resource);
+    }
+
+    /**
+     * @return local part, null if there is none
+     */
+    public String getLocalPart() {
+        return localPart;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return resource, null for bare JIDs
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    public boolean isBare() {
+        return resource == null;
+    }
+
+    /**
+     * @return this JID without resource, this if it is bare already
+     */
+    public Jid asBare() {
+        if (resource == null)
+            return this;
+        Jid b = bare;
+        if (b == null)
+            bare = b = of(jid.substring(0, jid.length() - resource.length() - 1));
+        return b;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Jid))
+            return false;
+        final Jid other = (Jid) o;
+        return hash == other.hash && jid.equals(other.jid);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return jid;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        // the string form is the stable wire format of a JID, so there is nothing to version, parts are re-split
+        // from it, mostly by a hit in the pool of the receiving process
+        dest.writeString(jid);
+    }
+
+    public static final Creator<Jid> CREATOR = new Creator<Jid>() {
+        public Jid createFromParcel(final Parcel source) {
+            // the sender may not have used this class, so this reads null for anything malformed
+            return parse(source.readString());
+        }
+
+        public Jid[] newArray(final int size) {
+            return new Jid[size];
+        }
+    };
+}
@@ -0,0 +1,112 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import org.openintents.xmpp.ExecuteService;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.openintents.xmpp.util.MessageStreamWriter.*;
+import static org.openintents.xmpp.util.XmppPluginCallbackApi.*;
+
+/**
+ * Plugin side of a message stream, obtained from XmppServiceApi.openMessageStream
+ *
+ * Decodes the records written by MessageStreamWriter back into the same ACTION_NEW_MESSAGE Intents the plugin
+ * callback would otherwise have received. Not thread safe, read from a single thread.
+ */
+public class MessageStreamReader implements Closeable {
+
+    private final Intent result;
+    private final DataInputStream in;
+    private boolean started;
+
+    MessageStreamReader(final Intent result, final ParcelFileDescriptor readSide) {
+        this.result = result;
+        this.in = new DataInputStream(new BufferedInputStream(new ParcelFileDescriptor.AutoCloseInputStream(readSide)));
+    }
+
+    /**
+     * @return result of the ACTION_REGISTER_PLUGIN_CALLBACK call that opened this stream
+     */
+    public Intent getResult() {
+        return result;
+    }
+
+    /**
+     * @return true if the provider agreed to deliver messages over this stream, if false messages keep arriving at
+     * the plugin callback and next() returns null
+     */
+    public boolean isStreaming() {
+        return result.getBooleanExtra(XmppServiceApi.RESULT_MESSAGE_STREAM, false);
+    }
+
+    /**
+     * Blocks until the next message arrives
+     * @return ACTION_NEW_MESSAGE Intent, or null once the provider closed the stream
+     */
+    public Intent next() throws IOException {
+        if (!isStreaming())
+            return null;
+        try {
+            if (!started) {
+                final int version = in.readInt();
+                if (version != STREAM_VERSION)
+                    throw new IOException("unsupported message stream version: " + version);
+                started = true;
+            }
+            final int type = in.readByte();
+            if (type != RECORD_NEW_MESSAGE)
+                throw new IOException("unknown message stream record: " + type);
+        } catch (EOFException e) {
+            return null;
+        }
+        final Intent message = new Intent(ACTION_NEW_MESSAGE);
+        message.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, readString());
+        message.putExtra(EXTRA_MESSAGE_FROM, readString());
+        message.putExtra(EXTRA_MESSAGE_TO, readString());
+        message.putExtra(EXTRA_MESSAGE_BODY, readString());
+        message.putExtra(EXTRA_MESSAGE_STATUS, in.readInt());
+        return message;
+    }
+
+    /**
+     * Hand every message to execute until the stream ends, blocks the calling thread until then
+     */
+    public void dispatch(final ExecuteService.Execute execute) {
+        try {
+            Intent message;
+            while ((message = next()) != null)
+                execute.execute(message, null, null);
+        } catch (IOException e) {
+            Log.e(XmppPluginCallbackApi.TAG, "IOException reading message stream", e);
+        } finally {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        final int length = in.readInt();
+        if (length == NULL_FIELD)
+            return null;
+        // the length comes from the peer, do not allocate whatever it claims
+        if (length < 0 || length > MAX_FIELD_BYTES)
+            throw new IOException("corrupt message stream, field length " + length);
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,126 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import org.openintents.xmpp.XmppMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.openintents.xmpp.util.XmppPluginCallbackApi.*;
+
+/**
+ * Provider side of a message stream requested with EXTRA_MESSAGE_STREAM in ACTION_REGISTER_PLUGIN_CALLBACK
+ *
+ * Writes one framed record per ACTION_NEW_MESSAGE into the pipe handed over by the plugin, to be read by
+ * MessageStreamReader, instead of calling IXmppPluginCallback.execute once per message.
+ * Thread safe, records from concurrent writers are never interleaved.
+ */
+public class MessageStreamWriter implements Closeable {
+
+    /**
+     * Written once at the start of the stream, bump when changing the record format
+     */
+    static final int STREAM_VERSION = 1;
+
+    static final int RECORD_NEW_MESSAGE = 1;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Longest string field in bytes of UTF-8, MessageStreamReader treats longer lengths as a corrupt stream instead of
+     * allocating them
+     */
+    static final int MAX_FIELD_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Length written in place of a null string field
+     */
+    static final int NULL_FIELD = -1;
+
+    private final DataOutputStream out;
+
+    /**
+     * @return a writer for the stream requested by this ACTION_REGISTER_PLUGIN_CALLBACK, or null if none was requested
+     */
+    public static MessageStreamWriter fromRequest(final Intent data) throws IOException {
+        final ParcelFileDescriptor writeSide = data.getParcelableExtra(XmppServiceApi.EXTRA_MESSAGE_STREAM);
+        return writeSide == null ? null : new MessageStreamWriter(writeSide);
+    }
+
+    /**
+     * @return success result telling the plugin messages will arrive over the stream
+     */
+    public static Intent getSuccess() {
+        final Intent result = XmppUtils.getSuccess();
+        result.putExtra(XmppServiceApi.RESULT_MESSAGE_STREAM, true);
+        return result;
+    }
+
+    public MessageStreamWriter(final ParcelFileDescriptor writeSide) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(writeSide)));
+        out.writeInt(STREAM_VERSION);
+        out.flush();
+    }
+
+    /**
+     * @param message ACTION_NEW_MESSAGE Intent, exactly as it would have been sent to the plugin callback
+     * @throws IOException if the plugin closed the stream or died, the writer should be closed and dropped then,
+     * or if a field is longer than MAX_FIELD_BYTES, nothing was written and the stream stays usable then
+     */
+    public void write(final Intent message) throws IOException {
+        write(XmppMessage.fromIntent(message));
+    }
+
+    public void write(final XmppMessage message) throws IOException {
+        write(message.getAccountJid(), message.getFrom(), message.getTo(), message.getBody(), message.getStatus());
+    }
+
+    /**
+     * see ACTION_NEW_MESSAGE for the meaning of each field
+     */
+    public void write(final String accountJid, final String from, final String to,
+                      final String body, final int status) throws IOException {
+        // encoded up front so a field over MAX_FIELD_BYTES leaves no partial record behind
+        final byte[] accountBytes = encode(accountJid);
+        final byte[] fromBytes = encode(from);
+        final byte[] toBytes = encode(to);
+        final byte[] bodyBytes = encode(body);
+        synchronized (this) {
+            out.writeByte(RECORD_NEW_MESSAGE);
+            writeString(accountBytes);
+            writeString(fromBytes);
+            writeString(toBytes);
+            writeString(bodyBytes);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    private static byte[] encode(final String s) throws IOException {
+        if (s == null)
+            return null;
+        // not writeUTF, bodies can be longer than 64k
+        final byte[] bytes = s.getBytes(UTF_8);
+        if (bytes.length > MAX_FIELD_BYTES)
+            throw new IOException("message stream field of " + bytes.length + " bytes, limit " + MAX_FIELD_BYTES);
+        return bytes;
+    }
+
+    private void writeString(final byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(NULL_FIELD);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,268 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import org.openintents.xmpp.XmppError;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.openintents.xmpp.util.XmppPluginCallbackApi.*;
+
+/**
+ * Collects raw XML sent for the same account within a short window and sends it as one ACTION_SEND_RAW_XML_BATCH,
+ * paced by a RateLimiter, so bursts of sends cost one binder call and reach the server at a steady rate
+ *
+ * Batches of an account are sent in order, each account on its own thread of this coalescer, so a slow account or
+ * provider never holds up the others. Each returned future completes with the result of its own element. Providers
+ * rejecting ACTION_SEND_RAW_XML_BATCH with NOT_SUPPORTED or INCOMPATIBLE_API_VERSIONS get every element as its own
+ * ACTION_SEND_RAW_XML instead. Usually obtained from XmppServiceApi.sendRawXmlCoalesced rather than created directly.
+ */
+public class OutboundCoalescer {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+    public static final int DEFAULT_MAX_BATCH = 32;
+    public static final double DEFAULT_STANZAS_PER_SECOND = 20;
+    public static final int DEFAULT_BURST = 50;
+
+    // only closes windows and waits out the rate limiter, never blocks on a binder call
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "XMPP API outbound coalescer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // runs the binder calls, at most one per account at a time
+    private final ThreadPoolExecutor sender = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "XMPP API outbound coalescer send");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final XmppServiceApi api;
+    private final RateLimiter rateLimiter;
+    private final long windowMillis;
+    private final int maxBatch;
+    // open batches by account, null accounts are kept under null
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+    // batches due by account, in order, the first one of each is being sent
+    private final Map<String, ArrayDeque<Batch>> due = new HashMap<String, ArrayDeque<Batch>>();
+    private volatile boolean batchUnsupported;
+
+    private class Batch implements Runnable {
+        final String accountJid;
+        final List<String> rawXml = new ArrayList<String>();
+        final List<XmppFuture> futures = new ArrayList<XmppFuture>();
+        final AtomicBoolean dispatched = new AtomicBoolean();
+
+        Batch(final String accountJid) {
+            this.accountJid = accountJid;
+        }
+
+        @Override
+        public void run() {
+            // runs when the window closes, or earlier if the batch filled up
+            if (!dispatched.compareAndSet(false, true))
+                return;
+            synchronized (OutboundCoalescer.this) {
+                if (open.get(accountJid) == this)
+                    open.remove(accountJid);
+            }
+            final long wait = rateLimiter == null ? 0 : rateLimiter.reserve(accountJid, rawXml.size());
+            if (wait > 0) {
+                // reservations of one account end in the order they were made, so its batches stay in order
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendInOrder(Batch.this);
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+            } else {
+                sendInOrder(this);
+            }
+        }
+    }
+
+    /**
+     * Sends the batches due for one account, one after another, until there are none left
+     */
+    private class AccountSender implements Runnable {
+        final String accountJid;
+
+        AccountSender(final String accountJid) {
+            this.accountJid = accountJid;
+        }
+
+        @Override
+        public void run() {
+            Batch batch;
+            synchronized (OutboundCoalescer.this) {
+                batch = due.get(accountJid).peek();
+            }
+            while (batch != null) {
+                send(batch);
+                synchronized (OutboundCoalescer.this) {
+                    final ArrayDeque<Batch> batches = due.get(accountJid);
+                    batches.poll();
+                    batch = batches.peek();
+                    if (batch == null)
+                        due.remove(accountJid);
+                }
+            }
+        }
+    }
+
+    public OutboundCoalescer(final XmppServiceApi api) {
+        this(api, new RateLimiter(DEFAULT_STANZAS_PER_SECOND, DEFAULT_BURST), DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param rateLimiter paces stanzas per account, null to send batches as soon as their window closes
+     * @param windowMillis how long to wait for more sends after the first one of a batch
+     * @param maxBatch elements after which a batch is sent without waiting for its window
+     */
+    public OutboundCoalescer(final XmppServiceApi api, final RateLimiter rateLimiter, final long windowMillis, final int maxBatch) {
+        if (api == null)
+            throw new NullPointerException("api must be non-null");
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        this.api = api;
+        this.rateLimiter = rateLimiter;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Queue rawXml to be sent with the next batch of accountJid
+     * @return completes with the result for this element once its batch was sent
+     */
+    public XmppFuture send(final String accountJid, final String rawXml) {
+        final XmppFuture future = new XmppFuture();
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = open.get(accountJid);
+            if (batch == null) {
+                batch = new Batch(accountJid);
+                open.put(accountJid, batch);
+                timer.schedule(batch, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.rawXml.add(rawXml);
+            batch.futures.add(future);
+            if (batch.rawXml.size() >= maxBatch) {
+                open.remove(accountJid);
+                full = batch;
+            }
+        }
+        if (full != null)
+            timer.execute(full);
+        return future;
+    }
+
+    /**
+     * Send every open batch now instead of waiting for its window, still paced by the rate limiter
+     */
+    public void flush() {
+        final List<Batch> batches;
+        synchronized (this) {
+            batches = new ArrayList<Batch>(open.values());
+            open.clear();
+        }
+        for (final Batch batch : batches)
+            timer.execute(batch);
+    }
+
+    private void sendInOrder(final Batch batch) {
+        synchronized (this) {
+            final ArrayDeque<Batch> batches = due.get(batch.accountJid);
+            if (batches != null) {
+                // the account's sender picks it up after the batches before it
+                batches.add(batch);
+                return;
+            }
+            final ArrayDeque<Batch> first = new ArrayDeque<Batch>();
+            first.add(batch);
+            due.put(batch.accountJid, first);
+        }
+        sender.execute(new AccountSender(batch.accountJid));
+    }
+
+    private void send(final Batch batch) {
+        if (batchUnsupported) {
+            sendEach(batch);
+            return;
+        }
+        Intent result;
+        try {
+            result = api.sendRawXmlBatch(batch.accountJid, batch.rawXml.toArray(new String[batch.rawXml.size()]));
+        } catch (RuntimeException e) {
+            result = XmppUtils.getExceptionError(e);
+        }
+        if (isUnsupported(result)) {
+            // a provider from before ACTION_SEND_RAW_XML_BATCH, it rejected the whole batch without sending any
+            batchUnsupported = true;
+            sendEach(batch);
+            return;
+        }
+        final int[] codes = result.getIntArrayExtra(XmppServiceApi.RESULT_BATCH_CODES);
+        if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) != RESULT_CODE_SUCCESS
+                || codes == null || codes.length != batch.futures.size()) {
+            // the whole batch failed, or a provider without per element results
+            for (final XmppFuture future : batch.futures)
+                future.complete(result);
+            return;
+        }
+        final XmppError[] errors = XmppUtils.getBatchErrors(result);
+        for (int i = 0; i < codes.length; ++i) {
+            final Intent elementResult;
+            if (codes[i] == RESULT_CODE_SUCCESS) {
+                elementResult = XmppUtils.getSuccess();
+            } else {
+                elementResult = new Intent();
+                elementResult.putExtra(RESULT_CODE, codes[i]);
+                if (errors != null && errors[i] != null)
+                    elementResult.putExtra(RESULT_ERROR, errors[i]);
+            }
+            batch.futures.get(i).complete(elementResult);
+        }
+    }
+
+    private static boolean isUnsupported(final Intent result) {
+        if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) != RESULT_CODE_ERROR)
+            return false;
+        final XmppError error = result.getParcelableExtra(RESULT_ERROR);
+        return error != null && (error.getErrorId() == XmppError.NOT_SUPPORTED
+                || error.getErrorId() == XmppError.INCOMPATIBLE_API_VERSIONS);
+    }
+
+    private void sendEach(final Batch batch) {
+        for (int i = 0; i < batch.rawXml.size(); ++i) {
+            final Intent data = new Intent(XmppServiceApi.ACTION_SEND_RAW_XML);
+            data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, batch.accountJid);
+            data.putExtra(XmppServiceApi.EXTRA_RAW_XML, batch.rawXml.get(i));
+            Intent result;
+            try {
+                result = api.executeApi(data, (ParcelFileDescriptor) null, null);
+            } catch (RuntimeException e) {
+                result = XmppUtils.getExceptionError(e);
+            }
+            batch.futures.get(i).complete(result);
+        }
+    }
+}
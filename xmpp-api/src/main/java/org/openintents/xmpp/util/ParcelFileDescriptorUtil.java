@@ -17,71 +17,336 @@
 
 package org.openintents.xmpp.util;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ParcelFileDescriptorUtil {
 
+    /**
+     * Copies everything from an InputStream to an OutputStream on a transfer thread, closing both when done
+     *
+     * transfer throws RejectedExecutionException if no transfer thread is free, leaving both streams open
+     */
+    public interface PumpEngine {
+        Future<?> transfer(InputStream in, OutputStream out);
+    }
+
+    /**
+     * Copies through a recycled byte[], works with any streams
+     */
+    public static final PumpEngine STREAM_ENGINE = new PumpEngine() {
+        @Override
+        public Future<?> transfer(final InputStream in, final OutputStream out) {
+            return transferExecutor.submit(new Transfer(in, out));
+        }
+    };
+
+    /**
+     * Copies through recycled direct ByteBuffers using the FileChannel of file descriptor backed streams, which
+     * the pipe side always is, and lets the kernel copy with FileChannel.transferTo when reading a regular file
+     */
+    public static final PumpEngine CHANNEL_ENGINE = new PumpEngine() {
+        @Override
+        public Future<?> transfer(final InputStream in, final OutputStream out) {
+            return transferExecutor.submit(new ChannelTransfer(in, out));
+        }
+    };
+
+    private static volatile PumpEngine pumpEngine = STREAM_ENGINE;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Most transfers running at once, each on a thread of its own, pipeFrom and pipeTo throw IOException beyond that
+     * rather than queueing, a queued pump could block the remote side writing into a full pipe forever
+     */
+    private static final int MAX_TRANSFERS = 32;
+
+    /**
+     * Most recycled buffers kept of each kind, transfers beyond that allocate their own
+     */
+    private static final int POOLED_BUFFERS = 8;
+
+    private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(POOLED_BUFFERS);
+
+    private static final BlockingQueue<ByteBuffer> directBufferPool = new ArrayBlockingQueue<ByteBuffer>(POOLED_BUFFERS);
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "IPC Transfer Thread");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    // no queue, the SynchronousQueue hands each transfer to an idle thread or a new one up to MAX_TRANSFERS,
+    // the default AbortPolicy rejects any more
+    private static final ExecutorService transferExecutor = new ThreadPoolExecutor(0, MAX_TRANSFERS,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+
+    public static PumpEngine getPumpEngine() {
+        return pumpEngine;
+    }
+
+    /**
+     * Choose how pipeFrom and pipeTo pump data from now on, transfers already running are not affected
+     * @param engine STREAM_ENGINE (default), CHANNEL_ENGINE, or your own
+     */
+    public static void setPumpEngine(final PumpEngine engine) {
+        if (engine == null)
+            throw new NullPointerException("engine must be non-null");
+        pumpEngine = engine;
+    }
+
+    /**
+     * @throws IOException if MAX_TRANSFERS are already running, inputStream is closed then
+     */
     public static ParcelFileDescriptor pipeFrom(InputStream inputStream)
             throws IOException {
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide))
-                .start();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(writeSide);
+        try {
+            pumpEngine.transfer(inputStream, out);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(inputStream);
+            closeQuietly(out);
+            closeQuietly(readSide);
+            throw tooManyTransfers(e);
+        }
 
         return readSide;
     }
 
-
-    public static TransferThread pipeTo(OutputStream outputStream, ParcelFileDescriptor output)
+    /**
+     * @return completes once all data has been pumped from output to outputStream and both are closed
+     * @throws IOException if MAX_TRANSFERS are already running, both are closed then
+     */
+    public static Future<?> pipeTo(OutputStream outputStream, ParcelFileDescriptor output)
             throws IOException {
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(output);
+        try {
+            return pumpEngine.transfer(in, outputStream);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(in);
+            closeQuietly(outputStream);
+            throw tooManyTransfers(e);
+        }
+    }
 
-        TransferThread t = new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(output), outputStream);
+    private static IOException tooManyTransfers(final RejectedExecutionException e) {
+        final IOException io = new IOException("too many pipe transfers running, limit " + MAX_TRANSFERS);
+        io.initCause(e);
+        return io;
+    }
 
-        t.start();
-        return t;
+    /**
+     * @return a duplicate of the file descriptor behind stream if it reads a regular file, null for anything else or
+     * if the platform is too old to duplicate it
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    public static ParcelFileDescriptor dupFile(final InputStream stream) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR2 || !(stream instanceof FileInputStream))
+            return null;
+        try {
+            final FileInputStream fileStream = (FileInputStream) stream;
+            return isSeekable(fileStream.getChannel()) ? ParcelFileDescriptor.dup(fileStream.getFD()) : null;
+        } catch (IOException e) {
+            return null;
+        }
     }
 
+    /**
+     * @return true if p is a regular file rather than a pipe or socket
+     */
+    public static boolean isFile(final ParcelFileDescriptor p) {
+        return p.getStatSize() >= 0;
+    }
 
-    static class TransferThread extends Thread {
+    /**
+     * Copy everything from in to out on the calling thread, using FileChannel.transferTo when in is a regular file,
+     * for providers and plugins handling execute without starting a pump, neither stream is closed
+     * @return number of bytes copied
+     */
+    public static long copy(final InputStream in, final OutputStream out) throws IOException {
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            final FileChannel src = ((FileInputStream) in).getChannel();
+            if (isSeekable(src)) {
+                final WritableByteChannel dst = ((FileOutputStream) out).getChannel();
+                final long start = src.position();
+                final long size = src.size();
+                long position = start, transferred;
+                while (position < size && (transferred = src.transferTo(position, size - position, dst)) > 0)
+                    position += transferred;
+                // transferTo does not move the position of src
+                src.position(position);
+                return position - start;
+            }
+        }
+        final byte[] buf = obtainBuffer();
+        try {
+            long total = 0;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+                total += len;
+            }
+            return total;
+        } finally {
+            recycleBuffer(buf);
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        final byte[] buf = bufferPool.poll();
+        return buf == null ? new byte[BUFFER_SIZE] : buf;
+    }
+
+    private static void recycleBuffer(final byte[] buf) {
+        // if the pool is full this one is simply garbage collected
+        bufferPool.offer(buf);
+    }
+
+    private static ByteBuffer obtainDirectBuffer() {
+        final ByteBuffer buf = directBufferPool.poll();
+        return buf == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buf;
+    }
+
+    private static void recycleDirectBuffer(final ByteBuffer buf) {
+        buf.clear();
+        directBufferPool.offer(buf);
+    }
+
+    private static void closeQuietly(final Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static class Transfer implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
 
-        TransferThread(InputStream in, OutputStream out) {
-            super("IPC Transfer Thread");
+        Transfer(InputStream in, OutputStream out) {
             mIn = in;
             mOut = out;
-            setDaemon(true);
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[4096];
+            byte[] buf = obtainBuffer();
             int len;
+            long total = 0;
+            final long start = System.nanoTime();
 
             try {
                 while ((len = mIn.read(buf)) > 0) {
                     mOut.write(buf, 0, len);
+                    total += len;
                 }
             } catch (IOException e) {
                 Log.e(XmppServiceApi.TAG, "IOException when writing to out", e);
             } finally {
-                try {
-                    mIn.close();
-                } catch (IOException ignored) {
-                }
-                try {
-                    mOut.close();
-                } catch (IOException ignored) {
+                XmppMetrics.recordTransfer(total, System.nanoTime() - start);
+                recycleBuffer(buf);
+                closeQuietly(mIn);
+                closeQuietly(mOut);
+            }
+        }
+    }
+
+    static class ChannelTransfer implements Runnable {
+        final InputStream mIn;
+        final OutputStream mOut;
+
+        ChannelTransfer(InputStream in, OutputStream out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void run() {
+            final ReadableByteChannel src = mIn instanceof FileInputStream ?
+                    ((FileInputStream) mIn).getChannel() : Channels.newChannel(mIn);
+            final WritableByteChannel dst = mOut instanceof FileOutputStream ?
+                    ((FileOutputStream) mOut).getChannel() : Channels.newChannel(mOut);
+
+            long total = 0;
+            final long start = System.nanoTime();
+            try {
+                if (src instanceof FileChannel && isSeekable((FileChannel) src)) {
+                    final FileChannel file = (FileChannel) src;
+                    long position = file.position();
+                    final long size = file.size();
+                    long transferred;
+                    while (position < size && (transferred = file.transferTo(position, size - position, dst)) > 0) {
+                        position += transferred;
+                        total += transferred;
+                    }
+                } else {
+                    final ByteBuffer buf = obtainDirectBuffer();
+                    try {
+                        int len;
+                        while ((len = src.read(buf)) > 0) {
+                            buf.flip();
+                            while (buf.hasRemaining())
+                                dst.write(buf);
+                            buf.clear();
+                            total += len;
+                        }
+                    } finally {
+                        recycleDirectBuffer(buf);
+                    }
                 }
+            } catch (IOException e) {
+                Log.e(XmppServiceApi.TAG, "IOException when writing to out", e);
+            } finally {
+                XmppMetrics.recordTransfer(total, System.nanoTime() - start);
+                closeQuietly(src);
+                closeQuietly(dst);
+                closeQuietly(mIn);
+                closeQuietly(mOut);
             }
         }
     }
 
+    /**
+     * @return true for regular files, false for pipes and sockets which cannot report a position
+     */
+    static boolean isSeekable(final FileChannel channel) {
+        try {
+            channel.position();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
 }
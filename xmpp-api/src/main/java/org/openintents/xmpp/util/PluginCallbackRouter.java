@@ -0,0 +1,299 @@
+package org.openintents.xmpp.util;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of registered plugin callbacks for providers, keyed by account, then domain, then local part, each level
+ * with a wildcard entry for callbacks that did not restrict it, so finding the callbacks for a message is a handful
+ * of hash lookups no matter how many callbacks are registered
+ *
+ * Lookups are lock free and may run concurrently with register and unregister.
+ */
+public class PluginCallbackRouter {
+
+    // JID parts are never empty, so this can never clash with a real one
+    private static final String ANY = "";
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>>>
+            routes = new ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>>>();
+
+    private final ConcurrentHashMap<IBinder, Registration> byBinder = new ConcurrentHashMap<IBinder, Registration>();
+
+    private volatile OnCallbackDied onCallbackDied;
+
+    public interface OnCallbackDied {
+        /**
+         * Called once the process behind a registered callback died, its routes are already removed
+         * @param pid process that registered the callbacks
+         * @param removed every callback registered through the dead binder
+         */
+        void onCallbackDied(int pid, List<XmppPluginCallbackApi> removed);
+    }
+
+    private class Registration implements IBinder.DeathRecipient {
+        final IBinder binder;
+        final int pid;
+        final List<XmppPluginCallbackApi> callbacks = new ArrayList<XmppPluginCallbackApi>(1);
+
+        Registration(final IBinder binder, final int pid) {
+            this.binder = binder;
+            this.pid = pid;
+        }
+
+        @Override
+        public void binderDied() {
+            final List<XmppPluginCallbackApi> removed;
+            synchronized (PluginCallbackRouter.this) {
+                if (byBinder.get(binder) != this)
+                    return;
+                removed = unregister(binder);
+            }
+            final OnCallbackDied listener = onCallbackDied;
+            if (listener != null)
+                listener.onCallbackDied(pid, removed);
+        }
+    }
+
+    public void setOnCallbackDied(final OnCallbackDied onCallbackDied) {
+        this.onCallbackDied = onCallbackDied;
+    }
+
+    /**
+     * Route messages matching callback.matches to callback, replacing any callback registered before for the same
+     * binder with the same account, domain and local part, call from the binder call registering it
+     *
+     * the routes are removed automatically if the process behind callback dies
+     * @return false if callback is already dead and was not registered
+     */
+    public boolean register(final XmppPluginCallbackApi callback) {
+        return register(callback, Binder.getCallingPid());
+    }
+
+    /**
+     * @param pid process callback lives in, passed to OnCallbackDied
+     */
+    public synchronized boolean register(final XmppPluginCallbackApi callback, final int pid) {
+        final IBinder binder = callback.asBinder();
+        Registration registration = byBinder.get(binder);
+        if (registration == null) {
+            registration = new Registration(binder, pid);
+            try {
+                binder.linkToDeath(registration, 0);
+            } catch (RemoteException e) {
+                return false;
+            }
+            byBinder.put(binder, registration);
+        } else {
+            replace(registration, callback.accountJid, callback.domain, callback.localPart);
+        }
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>> domains = routes.get(key(callback.accountJid));
+        if (domains == null) {
+            domains = new ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>>();
+            routes.put(key(callback.accountJid), domains);
+        }
+        ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>> localParts = domains.get(key(callback.domain));
+        if (localParts == null) {
+            localParts = new ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>();
+            domains.put(key(callback.domain), localParts);
+        }
+        CopyOnWriteArrayList<XmppPluginCallbackApi> callbacks = localParts.get(key(callback.localPart));
+        if (callbacks == null) {
+            callbacks = new CopyOnWriteArrayList<XmppPluginCallbackApi>();
+            localParts.put(key(callback.localPart), callbacks);
+        }
+        callbacks.add(callback);
+
+        registration.callbacks.add(callback);
+        return true;
+    }
+
+    /**
+     * Remove every route of the callback behind binder
+     * @return the removed callbacks, empty if there were none
+     */
+    public synchronized List<XmppPluginCallbackApi> unregister(final IBinder binder) {
+        final Registration registration = byBinder.remove(binder);
+        if (registration == null)
+            return Collections.emptyList();
+        unlink(registration);
+        for (final XmppPluginCallbackApi callback : registration.callbacks)
+            removeRoute(callback);
+        return registration.callbacks;
+    }
+
+    /**
+     * Remove the routes of the callback behind binder for accountJid, as ACTION_UNREGISTER_PLUGIN_CALLBACK does
+     * @return the removed callbacks, empty if there were none
+     */
+    public synchronized List<XmppPluginCallbackApi> unregister(final IBinder binder, final String accountJid) {
+        final Registration registration = byBinder.get(binder);
+        if (registration == null)
+            return Collections.emptyList();
+        final List<XmppPluginCallbackApi> removed = new ArrayList<XmppPluginCallbackApi>(registration.callbacks.size());
+        for (final XmppPluginCallbackApi callback : registration.callbacks)
+            if (equals(callback.accountJid, accountJid))
+                removed.add(callback);
+        remove(registration, removed, true);
+        return removed;
+    }
+
+    private void replace(final Registration registration, final String accountJid, final String domain, final String localPart) {
+        final List<XmppPluginCallbackApi> removed = new ArrayList<XmppPluginCallbackApi>(1);
+        for (final XmppPluginCallbackApi callback : registration.callbacks)
+            if (equals(callback.accountJid, accountJid) && equals(callback.domain, domain) && equals(callback.localPart, localPart))
+                removed.add(callback);
+        // keep the registration and its death link, register is about to add to it again
+        remove(registration, removed, false);
+    }
+
+    private void remove(final Registration registration, final List<XmppPluginCallbackApi> removed, final boolean prune) {
+        for (final XmppPluginCallbackApi callback : removed) {
+            registration.callbacks.remove(callback);
+            removeRoute(callback);
+        }
+        if (prune && registration.callbacks.isEmpty()) {
+            byBinder.remove(registration.binder);
+            unlink(registration);
+        }
+    }
+
+    private static void unlink(final Registration registration) {
+        try {
+            registration.binder.unlinkToDeath(registration, 0);
+        } catch (NoSuchElementException ignored) {
+            // already unlinked by its death
+        }
+    }
+
+    private void removeRoute(final XmppPluginCallbackApi callback) {
+        final ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>> domains = routes.get(key(callback.accountJid));
+        if (domains == null)
+            return;
+        final ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>> localParts = domains.get(key(callback.domain));
+        if (localParts == null)
+            return;
+        final CopyOnWriteArrayList<XmppPluginCallbackApi> callbacks = localParts.get(key(callback.localPart));
+        if (callbacks == null)
+            return;
+        callbacks.remove(callback);
+        // prune empty levels, a concurrent lookup still holding one just finds nothing in it
+        if (callbacks.isEmpty()) {
+            localParts.remove(key(callback.localPart));
+            if (localParts.isEmpty()) {
+                domains.remove(key(callback.domain));
+                if (domains.isEmpty())
+                    routes.remove(key(callback.accountJid));
+            }
+        }
+    }
+
+    /**
+     * @return every callback whose filter matches, in no particular order, an unmodifiable snapshot that concurrent
+     * register and unregister calls do not change
+     */
+    public List<XmppPluginCallbackApi> lookup(final String accountJid, final String localPart, final String domain) {
+        List<XmppPluginCallbackApi> found = Collections.emptyList();
+        if (accountJid != null)
+            found = collect(found, routes.get(accountJid), localPart, domain);
+        found = collect(found, routes.get(ANY), localPart, domain);
+        return found;
+    }
+
+    /**
+     * @param peer conversation partner, may be null
+     * @return every callback whose filter matches, see lookup(String, String, String)
+     */
+    public List<XmppPluginCallbackApi> lookup(final String accountJid, final Jid peer) {
+        return peer == null ? lookup(accountJid, null, null) : lookup(accountJid, peer.getLocalPart(), peer.getDomain());
+    }
+
+    /**
+     * @param stanza the stanza about to be delivered, callbacks whose StanzaFilter rejects it are left out
+     * @return every callback whose filters match, see lookup(String, String, String)
+     */
+    public List<XmppPluginCallbackApi> lookupFiltered(final String accountJid, final Jid peer, final StanzaFilter.Stanza stanza) {
+        final List<XmppPluginCallbackApi> found = lookup(accountJid, peer);
+        List<XmppPluginCallbackApi> filtered = null;
+        for (int i = 0; i < found.size(); ++i) {
+            final StanzaFilter filter = found.get(i).stanzaFilter;
+            final boolean matches = filter.isAll() || filter.matches(stanza);
+            if (filtered == null && !matches) {
+                // only copy once something is left out
+                filtered = new ArrayList<XmppPluginCallbackApi>(found.size() - 1);
+                filtered.addAll(found.subList(0, i));
+            } else if (filtered != null && matches) {
+                filtered.add(found.get(i));
+            }
+        }
+        return filtered == null ? found : filtered;
+    }
+
+    /**
+     * @return true if at least one callback is registered for accountJid, or for every account
+     */
+    public boolean hasRoutes(final String accountJid) {
+        return (accountJid != null && routes.containsKey(accountJid)) || routes.containsKey(ANY);
+    }
+
+    /**
+     * @return number of callback binders with routes, each may have several
+     */
+    public int size() {
+        return byBinder.size();
+    }
+
+    public boolean isEmpty() {
+        return byBinder.isEmpty();
+    }
+
+    private static List<XmppPluginCallbackApi> collect(List<XmppPluginCallbackApi> found,
+                                                      final ConcurrentHashMap<String, ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>>> domains,
+                                                      final String localPart, final String domain) {
+        if (domains == null)
+            return found;
+        if (domain != null) {
+            final ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>> localParts = domains.get(domain);
+            if (localParts != null) {
+                if (localPart != null)
+                    found = add(found, localParts.get(localPart));
+                found = add(found, localParts.get(ANY));
+            }
+        }
+        final ConcurrentHashMap<String, CopyOnWriteArrayList<XmppPluginCallbackApi>> anyDomain = domains.get(ANY);
+        if (anyDomain != null)
+            found = add(found, anyDomain.get(ANY));
+        return found;
+    }
+
+    private static List<XmppPluginCallbackApi> add(final List<XmppPluginCallbackApi> found, final List<XmppPluginCallbackApi> callbacks) {
+        if (callbacks == null || callbacks.isEmpty())
+            return found;
+        // copy the routing table's list, it changes under concurrent register and unregister calls
+        final XmppPluginCallbackApi[] snapshot = callbacks.toArray(new XmppPluginCallbackApi[0]);
+        if (found.isEmpty())
+            return Collections.unmodifiableList(Arrays.asList(snapshot));
+        final List<XmppPluginCallbackApi> merged = new ArrayList<XmppPluginCallbackApi>(found.size() + snapshot.length);
+        merged.addAll(found);
+        merged.addAll(Arrays.asList(snapshot));
+        return Collections.unmodifiableList(merged);
+    }
+
+    private static String key(final String part) {
+        return part == null ? ANY : part;
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
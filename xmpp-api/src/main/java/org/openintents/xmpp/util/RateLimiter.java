@@ -0,0 +1,95 @@
+package org.openintents.xmpp.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket per account JID, refilled at a steady rate up to a burst size, so a plugin stays under the stanza
+ * rate servers throttle accounts at without sleeping by hand
+ *
+ * reserve never fails, it takes the tokens ahead of time and returns how long to wait before using them, so callers
+ * reserving one after another are spaced out in order.
+ */
+public class RateLimiter {
+
+    // ConcurrentHashMap takes no null keys, JIDs are never empty
+    private static final String NO_ACCOUNT = "";
+
+    private static class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(final double tokens, final long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private final double permitsPerNano;
+    private final int burst;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * @param permitsPerSecond steady rate per account
+     * @param burst permits an idle account may use at once
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        if (permitsPerSecond <= 0 || burst < 1)
+            throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1");
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+    }
+
+    private Bucket getBucket(final String accountJid) {
+        final String key = accountJid == null ? NO_ACCOUNT : accountJid;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            final Bucket created = new Bucket(burst, System.nanoTime());
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null)
+                bucket = created;
+        }
+        return bucket;
+    }
+
+    private void refill(final Bucket bucket, final long now) {
+        bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * permitsPerNano);
+        bucket.updated = now;
+    }
+
+    /**
+     * Take permits for accountJid only if they are available right now
+     */
+    public boolean tryAcquire(final String accountJid, final int permits) {
+        final Bucket bucket = getBucket(accountJid);
+        synchronized (bucket) {
+            refill(bucket, System.nanoTime());
+            if (bucket.tokens < permits)
+                return false;
+            bucket.tokens -= permits;
+            return true;
+        }
+    }
+
+    /**
+     * Take permits for accountJid, going into debt if there are not enough
+     * @return nanoseconds to wait before using them, 0 if they can be used right away
+     */
+    public long reserve(final String accountJid, final int permits) {
+        final Bucket bucket = getBucket(accountJid);
+        synchronized (bucket) {
+            refill(bucket, System.nanoTime());
+            bucket.tokens -= permits;
+            return bucket.tokens >= 0 ? 0 : (long) Math.ceil(-bucket.tokens / permitsPerNano);
+        }
+    }
+
+    /**
+     * Take permits for accountJid, sleeping until they can be used
+     */
+    public void acquire(final String accountJid, final int permits) throws InterruptedException {
+        final long wait = reserve(accountJid, permits);
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
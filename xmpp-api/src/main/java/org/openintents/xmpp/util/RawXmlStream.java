@@ -0,0 +1,46 @@
+package org.openintents.xmpp.util;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Client side of ACTION_SEND_RAW_XML_STREAM, obtained from XmppServiceApi.openRawXmlStream
+ *
+ * Each element written is handed to the provider over the pipe right away, close() ends the stream.
+ * Not thread safe, synchronize externally if sending from more than one thread.
+ */
+public class RawXmlStream implements Closeable {
+
+    private final Writer writer;
+
+    RawXmlStream(final ParcelFileDescriptor writeSide) {
+        this.writer = new OutputStreamWriter(new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @param rawXml a single complete stanza or nonza
+     */
+    public void send(final String rawXml) throws IOException {
+        writer.write(rawXml);
+        writer.flush();
+    }
+
+    /**
+     * Send several elements with only one write to the pipe
+     */
+    public void send(final String... rawXml) throws IOException {
+        for (final String element : rawXml)
+            writer.write(element);
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
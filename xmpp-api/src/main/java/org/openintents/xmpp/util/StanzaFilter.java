@@ -0,0 +1,136 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+
+import java.util.Arrays;
+
+/**
+ * Filter on the stanza itself, registered with the EXTRA_FILTER_* extras of ACTION_REGISTER_PLUGIN_CALLBACK, so
+ * providers can skip callbacks before crossing the process boundary instead of the plugin discarding the message
+ *
+ * Compiled once at registration, matching is a few string comparisons and never allocates. Every condition left
+ * null matches anything.
+ */
+public class StanzaFilter {
+
+    /**
+     * Matches every stanza, used for registrations without filter extras
+     */
+    public static final StanzaFilter ALL = new StanzaFilter(null, null, null, null, null);
+
+    /**
+     * The parts of a stanza a filter looks at, for providers to implement over their own stanza objects
+     */
+    public interface Stanza {
+        /**
+         * @return element name, message, presence or iq
+         */
+        String getName();
+
+        /**
+         * @return value of the type attribute, null if there is none
+         */
+        String getType();
+
+        /**
+         * @param name element name, null for any
+         * @param namespace element namespace, null for any
+         * @return true if the stanza has a direct child element matching both
+         */
+        boolean hasChild(String name, String namespace);
+    }
+
+    private static final String MESSAGE = "message";
+    // RFC 6121, a message without type attribute is of type normal
+    private static final String NORMAL = "normal";
+    private static final String BODY = "body";
+
+    private final String stanzaName;
+    private final String[] types;
+    private final String childName, childNamespace;
+    private final Boolean hasBody;
+
+    /**
+     * @param stanzaName message, presence or iq
+     * @param types values of the type attribute to accept, normal also matches messages without type
+     * @param childName name of a direct child element the stanza must have
+     * @param childNamespace namespace of that child element
+     * @param hasBody true to only match messages with a body, false to only match messages without
+     */
+    public StanzaFilter(final String stanzaName, final String[] types, final String childName,
+                        final String childNamespace, final Boolean hasBody) {
+        this.stanzaName = stanzaName;
+        this.types = types == null || types.length == 0 ? null : types.clone();
+        this.childName = childName;
+        this.childNamespace = childNamespace;
+        this.hasBody = hasBody;
+    }
+
+    /**
+     * @param data ACTION_REGISTER_PLUGIN_CALLBACK Intent
+     * @return filter compiled from its EXTRA_FILTER_* extras, ALL if it has none
+     */
+    public static StanzaFilter fromIntent(final Intent data) {
+        final String stanzaName = data.getStringExtra(XmppServiceApi.EXTRA_FILTER_STANZA);
+        final String[] types = data.getStringArrayExtra(XmppServiceApi.EXTRA_FILTER_TYPES);
+        final String childName = data.getStringExtra(XmppServiceApi.EXTRA_FILTER_CHILD_NAME);
+        final String childNamespace = data.getStringExtra(XmppServiceApi.EXTRA_FILTER_CHILD_NAMESPACE);
+        final Boolean hasBody = data.hasExtra(XmppServiceApi.EXTRA_FILTER_HAS_BODY) ?
+                data.getBooleanExtra(XmppServiceApi.EXTRA_FILTER_HAS_BODY, false) : null;
+        if (stanzaName == null && types == null && childName == null && childNamespace == null && hasBody == null)
+            return ALL;
+        return new StanzaFilter(stanzaName, types, childName, childNamespace, hasBody);
+    }
+
+    /**
+     * Add this filter to an ACTION_REGISTER_PLUGIN_CALLBACK Intent
+     */
+    public Intent putExtras(final Intent data) {
+        if (stanzaName != null)
+            data.putExtra(XmppServiceApi.EXTRA_FILTER_STANZA, stanzaName);
+        if (types != null)
+            data.putExtra(XmppServiceApi.EXTRA_FILTER_TYPES, types);
+        if (childName != null)
+            data.putExtra(XmppServiceApi.EXTRA_FILTER_CHILD_NAME, childName);
+        if (childNamespace != null)
+            data.putExtra(XmppServiceApi.EXTRA_FILTER_CHILD_NAMESPACE, childNamespace);
+        if (hasBody != null)
+            data.putExtra(XmppServiceApi.EXTRA_FILTER_HAS_BODY, hasBody.booleanValue());
+        return data;
+    }
+
+    /**
+     * @return true if this filter accepts everything, so there is no need to look at the stanza
+     */
+    public boolean isAll() {
+        return stanzaName == null && types == null && childName == null && childNamespace == null && hasBody == null;
+    }
+
+    public boolean matches(final Stanza stanza) {
+        if (stanzaName != null && !stanzaName.equals(stanza.getName()))
+            return false;
+        if (types != null && !matchesType(stanza))
+            return false;
+        if (hasBody != null && hasBody != stanza.hasChild(BODY, null))
+            return false;
+        return (childName == null && childNamespace == null) || stanza.hasChild(childName, childNamespace);
+    }
+
+    private boolean matchesType(final Stanza stanza) {
+        String type = stanza.getType();
+        if (type == null && MESSAGE.equals(stanza.getName()))
+            type = NORMAL;
+        if (type == null)
+            return false;
+        for (final String t : types)
+            if (t.equals(type))
+                return true;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "StanzaFilter{stanza=" + stanzaName + ", types=" + Arrays.toString(types) + ", child=" + childName +
+                ", namespace=" + childNamespace + ", hasBody=" + hasBody + '}';
+    }
+}
@@ -0,0 +1,500 @@
+package org.openintents.xmpp.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pull parser over raw XML, from a String such as EXTRA_RAW_XML or streamed from a pipe, without building a tree
+ *
+ * Only positions are recorded while parsing, names, attributes and text become Strings when asked for, so reading
+ * the id of an IQ or skipping a large pubsub payload with skipElement allocates next to nothing. When reading from
+ * a stream only the current tag or text is buffered.
+ *
+ * Namespaces are tracked for default xmlns declarations only, prefixed names are reported as they are written.
+ * There is no validation beyond what is needed to find tags.
+ */
+public class StanzaReader {
+
+    public static final int END_DOCUMENT = -1;
+    public static final int START_ELEMENT = 1;
+    public static final int END_ELEMENT = 2;
+    public static final int TEXT = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String XMLNS = "xmlns";
+
+    private final String src;
+    private final Reader in;
+    private char[] buf;
+    private int limit, pos;
+
+    private int event;
+    private int depth;
+    private boolean selfClosing;
+    private int nameStart, nameEnd, textStart, textEnd;
+    private boolean cdata;
+    // nameStart, nameEnd, valueStart, valueEnd of each attribute of the current start tag
+    private int[] attributes = new int[4 * 8];
+    private int attributeCount;
+    // default namespace in scope at each depth, index 0 is outside the root
+    private String[] namespaces = new String[8];
+    // receives the source of every token returned, and of those skipped within an element, see setRawCapture
+    private StringBuilder raw;
+
+    public StanzaReader(final String xml) {
+        if (xml == null)
+            throw new NullPointerException("xml must be non-null");
+        this.src = xml;
+        this.in = null;
+        this.limit = xml.length();
+    }
+
+    public StanzaReader(final InputStream is) {
+        this(new InputStreamReader(is, UTF_8));
+    }
+
+    public StanzaReader(final Reader in) {
+        if (in == null)
+            throw new NullPointerException("in must be non-null");
+        this.src = null;
+        this.in = in;
+        this.buf = new char[1024];
+    }
+
+    /**
+     * Append the source of every token from now on to sb, exactly as it was read, including declarations, comments
+     * and processing instructions within elements, for StanzaSplitter to cut out whole elements
+     */
+    void setRawCapture(final StringBuilder sb) {
+        this.raw = sb;
+    }
+
+    /**
+     * @return value of attribute name on the first element of xml, null if there is none or xml is malformed
+     */
+    public static String getRootAttribute(final String xml, final String name) {
+        if (xml == null)
+            return null;
+        try {
+            final StanzaReader reader = new StanzaReader(xml);
+            int event;
+            while ((event = reader.next()) != START_ELEMENT)
+                if (event == END_DOCUMENT)
+                    return null;
+            return reader.getAttribute(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the first element of xml for StanzaFilter, null if xml is malformed
+     */
+    public static StanzaFilter.Stanza readStanza(final String xml) {
+        try {
+            final StanzaReader reader = new StanzaReader(xml);
+            int event;
+            while ((event = reader.next()) != START_ELEMENT)
+                if (event == END_DOCUMENT)
+                    return null;
+            return reader.readStanza();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Advance to the next element start, element end or text, skipping XML declarations, processing instructions,
+     * comments and doctypes, a self closing element is reported as a start followed by an end
+     * @return the new event type
+     * @throws IOException on read errors, malformed tags, or input ending within an element
+     */
+    public int next() throws IOException {
+        if (event == END_ELEMENT)
+            --depth;
+        if (selfClosing) {
+            selfClosing = false;
+            return event = END_ELEMENT;
+        }
+        compact();
+        while (true) {
+            if (!ensure(pos)) {
+                if (depth > 0)
+                    throw new EOFException("input ended within element");
+                return event = END_DOCUMENT;
+            }
+            final int start = pos;
+            if (c(pos) != '<') {
+                textStart = pos;
+                while (ensure(pos) && c(pos) != '<')
+                    ++pos;
+                textEnd = pos;
+                cdata = false;
+                return token(TEXT, start);
+            }
+            switch (charAt(pos + 1)) {
+                case '?':
+                    pos = skipPast("?>", pos + 2);
+                    if (depth > 0)
+                        capture(start);
+                    break;
+                case '!':
+                    if (startsWith("<![CDATA[", pos)) {
+                        textStart = pos + 9;
+                        pos = skipPast("]]>", textStart);
+                        textEnd = pos - 3;
+                        cdata = true;
+                        return token(TEXT, start);
+                    }
+                    pos = skipPast(startsWith("<!--", pos) ? "-->" : ">", pos + 2);
+                    if (depth > 0)
+                        capture(start);
+                    break;
+                case '/':
+                    nameStart = pos + 2;
+                    nameEnd = scanName(nameStart);
+                    pos = skipPast(">", nameEnd);
+                    if (depth == 0)
+                        throw new IOException("unbalanced end tag");
+                    return token(END_ELEMENT, start);
+                default:
+                    parseStartTag();
+                    return token(START_ELEMENT, start);
+            }
+        }
+    }
+
+    private int token(final int event, final int start) {
+        capture(start);
+        return this.event = event;
+    }
+
+    private void capture(final int start) {
+        if (raw == null)
+            return;
+        if (src != null)
+            raw.append(src, start, pos);
+        else
+            raw.append(buf, start, pos - start);
+    }
+
+    private void parseStartTag() throws IOException {
+        nameStart = pos + 1;
+        int i = nameEnd = scanName(nameStart);
+        attributeCount = 0;
+        while (true) {
+            i = skipWhitespace(i);
+            final char c = charAt(i);
+            if (c == '>') {
+                ++i;
+                break;
+            }
+            if (c == '/') {
+                if (charAt(i + 1) != '>')
+                    throw new IOException("malformed tag");
+                i += 2;
+                selfClosing = true;
+                break;
+            }
+            final int attributeNameStart = i;
+            final int attributeNameEnd = i = scanName(i);
+            i = skipWhitespace(i);
+            if (charAt(i) != '=')
+                throw new IOException("attribute without value");
+            i = skipWhitespace(i + 1);
+            final char quote = charAt(i);
+            if (quote != '"' && quote != '\'')
+                throw new IOException("unquoted attribute value");
+            final int valueStart = i + 1;
+            for (i = valueStart; charAt(i) != quote; ++i)
+                ;
+            addAttribute(attributeNameStart, attributeNameEnd, valueStart, i);
+            ++i;
+        }
+        pos = i;
+        ++depth;
+        if (depth >= namespaces.length)
+            namespaces = Arrays.copyOf(namespaces, namespaces.length * 2);
+        final int xmlns = findAttribute(XMLNS);
+        namespaces[depth] = xmlns == -1 ? namespaces[depth - 1] : getAttributeValue(xmlns);
+    }
+
+    private void addAttribute(final int nameStart, final int nameEnd, final int valueStart, final int valueEnd) {
+        if (attributeCount * 4 == attributes.length)
+            attributes = Arrays.copyOf(attributes, attributes.length * 2);
+        final int i = attributeCount++ * 4;
+        attributes[i] = nameStart;
+        attributes[i + 1] = nameEnd;
+        attributes[i + 2] = valueStart;
+        attributes[i + 3] = valueEnd;
+    }
+
+    public int getEventType() {
+        return event;
+    }
+
+    /**
+     * @return nesting depth of the current element, 1 for the root, 0 outside of it
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return name of the current element, valid for START_ELEMENT and END_ELEMENT
+     */
+    public String getName() {
+        return string(nameStart, nameEnd);
+    }
+
+    /**
+     * @return true if the current element is called name, without allocating
+     */
+    public boolean isName(final String name) {
+        return regionEquals(nameStart, nameEnd, name);
+    }
+
+    /**
+     * @return default namespace in scope for the current element, null if none was declared
+     */
+    public String getNamespace() {
+        return namespaces[depth];
+    }
+
+    /**
+     * @return number of attributes of the current start tag, including namespace declarations
+     */
+    public int getAttributeCount() {
+        return event == START_ELEMENT ? attributeCount : 0;
+    }
+
+    public String getAttributeName(final int index) {
+        return string(attributes[index * 4], attributes[index * 4 + 1]);
+    }
+
+    public String getAttributeValue(final int index) {
+        return unescape(attributes[index * 4 + 2], attributes[index * 4 + 3]);
+    }
+
+    /**
+     * @return unescaped value of attribute name of the current start tag, null if it has none
+     */
+    public String getAttribute(final String name) {
+        if (event != START_ELEMENT)
+            return null;
+        final int index = findAttribute(name);
+        return index == -1 ? null : getAttributeValue(index);
+    }
+
+    private int findAttribute(final String name) {
+        for (int i = 0; i < attributeCount; ++i)
+            if (regionEquals(attributes[i * 4], attributes[i * 4 + 1], name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return unescaped text, valid for TEXT
+     */
+    public String getText() {
+        return cdata ? string(textStart, textEnd) : unescape(textStart, textEnd);
+    }
+
+    /**
+     * Skip the contents of the current START_ELEMENT, leaving the reader at its END_ELEMENT, without creating
+     * any strings for them
+     */
+    public void skipElement() throws IOException {
+        if (event != START_ELEMENT)
+            throw new IllegalStateException("not at a start tag");
+        final int elementDepth = depth;
+        while (next() != END_ELEMENT || depth != elementDepth)
+            ;
+    }
+
+    /**
+     * Read the current START_ELEMENT as a Stanza for StanzaFilter, recording only the names and namespaces of its
+     * direct children, leaving the reader at its END_ELEMENT
+     */
+    public StanzaFilter.Stanza readStanza() throws IOException {
+        if (event != START_ELEMENT)
+            throw new IllegalStateException("not at a start tag");
+        final String name = getName();
+        final String type = getAttribute("type");
+        final int elementDepth = depth;
+        final List<String> childNames = new ArrayList<String>(4);
+        final List<String> childNamespaces = new ArrayList<String>(4);
+        while (next() != END_ELEMENT || depth != elementDepth) {
+            if (event == START_ELEMENT) {
+                childNames.add(getName());
+                childNamespaces.add(getNamespace());
+                skipElement();
+            }
+        }
+        return new StanzaFilter.Stanza() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getType() {
+                return type;
+            }
+
+            @Override
+            public boolean hasChild(final String name, final String namespace) {
+                for (int i = 0; i < childNames.size(); ++i)
+                    if ((name == null || name.equals(childNames.get(i))) &&
+                            (namespace == null || namespace.equals(childNamespaces.get(i))))
+                        return true;
+                return false;
+            }
+        };
+    }
+
+    private char c(final int i) {
+        return src != null ? src.charAt(i) : buf[i];
+    }
+
+    /**
+     * @return false if input ends before i
+     */
+    private boolean ensure(final int i) throws IOException {
+        while (i >= limit) {
+            if (in == null)
+                return false;
+            if (limit == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            final int read = in.read(buf, limit, buf.length - limit);
+            if (read == -1)
+                return false;
+            limit += read;
+        }
+        return true;
+    }
+
+    private char charAt(final int i) throws IOException {
+        if (!ensure(i))
+            throw new EOFException("input ended within tag");
+        return c(i);
+    }
+
+    /**
+     * Drop what was already parsed from the stream buffer, only between tokens, so positions stay valid
+     */
+    private void compact() {
+        if (in != null && pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+    }
+
+    private int scanName(int i) throws IOException {
+        char c;
+        while (!isWhitespace(c = charAt(i)) && c != '>' && c != '/' && c != '=')
+            ++i;
+        return i;
+    }
+
+    private int skipWhitespace(int i) throws IOException {
+        while (isWhitespace(charAt(i)))
+            ++i;
+        return i;
+    }
+
+    /**
+     * @return position right after the next occurrence of end at or after i
+     */
+    private int skipPast(final String end, int i) throws IOException {
+        while (!startsWith(end, i))
+            ++i;
+        return i + end.length();
+    }
+
+    private boolean startsWith(final String s, final int i) throws IOException {
+        for (int j = 0; j < s.length(); ++j)
+            if (charAt(i + j) != s.charAt(j))
+                return false;
+        return true;
+    }
+
+    private boolean regionEquals(final int start, final int end, final String s) {
+        if (end - start != s.length())
+            return false;
+        for (int i = 0; i < s.length(); ++i)
+            if (c(start + i) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private String string(final int start, final int end) {
+        return src != null ? src.substring(start, end) : new String(buf, start, end - start);
+    }
+
+    private String unescape(final int start, final int end) {
+        int amp = -1;
+        for (int i = start; i < end && amp == -1; ++i)
+            if (c(i) == '&')
+                amp = i;
+        if (amp == -1)
+            return string(start, end);
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            final char c = c(i);
+            int semicolon;
+            if (c != '&' || (semicolon = indexOf(';', i, end)) == -1) {
+                sb.append(c);
+                continue;
+            }
+            final String entity = string(i + 1, semicolon);
+            if (entity.equals("lt"))
+                sb.append('<');
+            else if (entity.equals("gt"))
+                sb.append('>');
+            else if (entity.equals("amp"))
+                sb.append('&');
+            else if (entity.equals("quot"))
+                sb.append('"');
+            else if (entity.equals("apos"))
+                sb.append('\'');
+            else if (!appendCharReference(sb, entity))
+                sb.append('&').append(entity).append(';'); // not ours to resolve
+            i = semicolon;
+        }
+        return sb.toString();
+    }
+
+    private static boolean appendCharReference(final StringBuilder sb, final String entity) {
+        if (!entity.startsWith("#"))
+            return false;
+        try {
+            if (entity.startsWith("#x") || entity.startsWith("#X"))
+                sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+            else
+                sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false; // also thrown for invalid code points
+        }
+    }
+
+    private int indexOf(final char c, final int start, final int end) {
+        for (int i = start; i < end; ++i)
+            if (c(i) == c)
+                return i;
+        return -1;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
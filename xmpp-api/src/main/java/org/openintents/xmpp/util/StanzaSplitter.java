@@ -0,0 +1,67 @@
+package org.openintents.xmpp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a continuous stream of raw XML elements, as sent with ACTION_SEND_RAW_XML_STREAM, into one String per
+ * top level element as soon as each element is complete, without waiting for the end of the stream.
+ *
+ * Tags are found by a StanzaReader, so this accepts exactly the XML StanzaReader and StanzaFilter do. XML
+ * declarations and comments between elements are skipped, each element is returned as it was written.
+ */
+public class StanzaSplitter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StanzaReader reader;
+    private final StringBuilder sb = new StringBuilder();
+
+    public StanzaSplitter(final InputStream is) {
+        this(new InputStreamReader(is, UTF_8));
+    }
+
+    public StanzaSplitter(final Reader in) {
+        if (in == null)
+            throw new NullPointerException("in must be non-null");
+        this.reader = new StanzaReader(in);
+        reader.setRawCapture(sb);
+    }
+
+    /**
+     * Blocks until the next complete element is available
+     * @return next top level element, or null if the stream ended cleanly between elements
+     * @throws IOException on read errors, text outside of elements, malformed tags, or if the stream ended within
+     * an element
+     */
+    public String next() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            switch (reader.next()) {
+                case StanzaReader.END_DOCUMENT:
+                    return null;
+                case StanzaReader.TEXT:
+                    if (reader.getDepth() == 0) {
+                        if (!isWhitespace(sb))
+                            throw new IOException("text outside of element: " + sb);
+                        sb.setLength(0);
+                    }
+                    break;
+                case StanzaReader.END_ELEMENT:
+                    if (reader.getDepth() == 1)
+                        return sb.toString();
+                    break;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(final CharSequence s) {
+        for (int i = 0; i < s.length(); ++i)
+            if (!Character.isWhitespace(s.charAt(i)))
+                return false;
+        return true;
+    }
+}
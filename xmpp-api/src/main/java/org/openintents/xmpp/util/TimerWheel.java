@@ -0,0 +1,129 @@
+package org.openintents.xmpp.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel, scheduling and cancelling are O(1) and lock free, expiry is accurate to one tick
+ *
+ * Runs tasks on a single daemon thread that only exists while timeouts are pending, so tasks must be quick.
+ * Cancelled timeouts are dropped the next time the wheel passes their bucket.
+ */
+class TimerWheel {
+
+    static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+        volatile boolean cancelled;
+
+        Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Timeout>> wheel;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    // scheduled and not yet dropped from the wheel, includes cancelled ones
+    private final AtomicInteger pending = new AtomicInteger();
+    private boolean running;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of 2
+     */
+    TimerWheel(final String name, final long tick, final TimeUnit unit, final int wheelSize) {
+        this.name = name;
+        this.tickNanos = unit.toNanos(tick);
+        final int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<List<Timeout>>(size);
+        for (int i = 0; i < size; ++i)
+            wheel.add(new ArrayList<Timeout>());
+    }
+
+    Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.incrementAndGet();
+        added.add(timeout);
+        start();
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private synchronized boolean stopIfIdle() {
+        if (pending.get() == 0) {
+            running = false;
+            return true;
+        }
+        return false;
+    }
+
+    private void runWheel() {
+        final long startTime = System.nanoTime();
+        long tick = 0;
+        while (true) {
+            final long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ignored) {
+                    // daemon, nothing else to do but keep going
+                }
+            }
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                final long ticks = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+                timeout.remainingRounds = (ticks - tick) / wheel.size();
+                wheel.get((int) (ticks & mask)).add(timeout);
+            }
+            final long now = System.nanoTime();
+            for (final Iterator<Timeout> it = wheel.get((int) (tick & mask)).iterator(); it.hasNext(); ) {
+                timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                    pending.decrementAndGet();
+                } else if (timeout.remainingRounds > 0) {
+                    --timeout.remainingRounds;
+                } else if (timeout.deadline <= now + tickNanos) {
+                    it.remove();
+                    pending.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(XmppPluginCallbackApi.TAG, "Exception in timeout task", e);
+                    }
+                }
+            }
+            ++tick;
+            if (stopIfIdle())
+                return;
+        }
+    }
+}
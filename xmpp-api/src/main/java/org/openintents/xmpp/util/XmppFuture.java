@@ -0,0 +1,210 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.openintents.xmpp.util.XmppPluginCallbackApi.IXmppCallback;
+
+/**
+ * Result of an asynchronous API call, errors are reported the same way as by the synchronous calls, as an Intent
+ * with RESULT_CODE_ERROR, so get() never throws ExecutionException
+ *
+ * Callbacks are delivered on the Executor given with them, for example DIRECT_EXECUTOR to run them on the thread
+ * completing the call, or a HandlerExecutor for a Looper thread.
+ */
+public class XmppFuture implements Future<Intent> {
+
+    /**
+     * Runs callbacks on whichever thread completes the future
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class Callback implements Runnable {
+        final IXmppCallback callback;
+        final Executor executor;
+        Intent result;
+
+        Callback(final IXmppCallback callback, final Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            callback.onReturn(result);
+        }
+    }
+
+    private Intent result;
+    private boolean done, cancelled;
+    private Thread runner;
+    private List<Callback> callbacks;
+
+    /**
+     * Run call on executor
+     * @return future completed with the result of call, or with an error result if executor rejected it
+     */
+    public static XmppFuture submit(final Executor executor, final Callable<Intent> call) {
+        final XmppFuture future = new XmppFuture();
+        try {
+            executor.execute(future.asTask(call));
+        } catch (RuntimeException e) {
+            future.complete(XmppUtils.getExceptionError(e));
+        }
+        return future;
+    }
+
+    /**
+     * @return task completing this future with the result of call when run, for running it on your own queue
+     */
+    public Runnable asTask(final Callable<Intent> call) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                XmppFuture.this.run(call);
+            }
+        };
+    }
+
+    private void run(final Callable<Intent> call) {
+        synchronized (this) {
+            if (done)
+                return; // cancelled before it started
+            runner = Thread.currentThread();
+        }
+        Intent r;
+        try {
+            r = call.call();
+        } catch (Exception e) {
+            r = XmppUtils.getExceptionError(e);
+        } finally {
+            synchronized (this) {
+                runner = null;
+            }
+            // clear any interrupt from cancel() so it does not leak into the next task on this pool thread
+            Thread.interrupted();
+        }
+        complete(r);
+    }
+
+    /**
+     * Complete this future, running all callbacks, has no effect if already done
+     * @return true if this call completed it
+     */
+    public boolean complete(final Intent result) {
+        final List<Callback> toRun;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.result = result;
+            done = true;
+            toRun = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        if (toRun != null)
+            for (final Callback c : toRun)
+                dispatch(c, result);
+        return true;
+    }
+
+    /**
+     * Call callback with the result once this completes, right away if it already did, never if it is cancelled
+     */
+    public XmppFuture addCallback(final IXmppCallback callback, final Executor executor) {
+        if (callback == null || executor == null)
+            throw new NullPointerException("callback and executor must be non-null");
+        final Callback c = new Callback(callback, executor);
+        final Intent r;
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null)
+                    callbacks = new ArrayList<Callback>(1);
+                callbacks.add(c);
+                return this;
+            }
+            if (cancelled)
+                return this;
+            r = result;
+        }
+        dispatch(c, r);
+        return this;
+    }
+
+    /**
+     * A callback that throws, or whose executor rejects it, is logged and skipped, the other callbacks still run and
+     * the thread completing the future never sees the exception
+     */
+    private static void dispatch(final Callback c, final Intent result) {
+        c.result = result;
+        try {
+            c.executor.execute(c);
+        } catch (RuntimeException e) {
+            Log.e(XmppServiceApi.TAG, "Exception delivering XmppFuture callback " + c.callback, e);
+        }
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done)
+                return false;
+            done = cancelled = true;
+            callbacks = null;
+            if (mayInterruptIfRunning && runner != null)
+                runner.interrupt();
+            notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Intent get() throws InterruptedException {
+        while (!done)
+            wait();
+        return getResult();
+    }
+
+    @Override
+    public synchronized Intent get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getResult();
+    }
+
+    private Intent getResult() {
+        if (cancelled)
+            throw new CancellationException();
+        return result;
+    }
+}
@@ -0,0 +1,290 @@
+package org.openintents.xmpp.util;
+
+import android.content.Intent;
+import android.os.Parcel;
+import org.openintents.xmpp.XmppStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per action and account latency histograms, error and in flight counts of the calls this process makes and serves,
+ * and totals of the bytes pumped through pipes
+ *
+ * Recording is lock free, a call costs two clock reads and a handful of atomic increments. Read it from code with
+ * getStats, or from another process with ACTION_GET_STATS.
+ */
+public class XmppMetrics {
+
+    /**
+     * Distinct action and account pairs tracked per direction, calls beyond that are counted under OVERFLOW_ACTION
+     * so callers sending made up actions cannot grow this without bound
+     */
+    public static final int MAX_ENTRIES = 256;
+    public static final String OVERFLOW_ACTION = "other";
+
+    // map key for a missing action or account, neither is ever empty so this can never clash with a real one
+    private static final String NONE = "";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final XmppMetrics incoming = new XmppMetrics(XmppStats.DIRECTION_INCOMING);
+    private static final XmppMetrics outgoing = new XmppMetrics(XmppStats.DIRECTION_OUTGOING);
+
+    private static final AtomicLong pipeBytes = new AtomicLong();
+    private static final Histogram pipeTransfers = new Histogram();
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean measureParcelSizes = false;
+
+    /**
+     * Calls of one action for one account
+     */
+    public static class ActionStats {
+        final String action, accountJid;
+        final Histogram latency = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        // created on first use, most processes never measure sizes
+        volatile Histogram requestSize, resultSize;
+
+        ActionStats(final String action, final String accountJid) {
+            this.action = action;
+            this.accountJid = accountJid;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getAccountJid() {
+            return accountJid;
+        }
+
+        /**
+         * @return nanoseconds from the start of each completed call until its result was ready
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return parcelled sizes of request Intents in bytes, null unless setMeasureParcelSizes was on
+         */
+        public Histogram getRequestSize() {
+            return requestSize;
+        }
+
+        /**
+         * @return parcelled sizes of result Intents in bytes, null unless setMeasureParcelSizes was on
+         */
+        public Histogram getResultSize() {
+            return resultSize;
+        }
+
+        void recordSizes(final int request, final int result) {
+            if (resultSize == null) {
+                synchronized (this) {
+                    // resultSize is set last, so once it is there requestSize is too
+                    if (resultSize == null) {
+                        requestSize = new Histogram();
+                        resultSize = new Histogram();
+                    }
+                }
+            }
+            requestSize.record(request);
+            resultSize.record(result);
+        }
+
+        XmppStats.Entry toEntry(final int direction) {
+            final long[] l = latency.getValuesAtPercentiles(PERCENTILES);
+            final XmppStats.Entry entry = new XmppStats.Entry(direction, action, accountJid,
+                    latency.getCount(), errors.get(), inFlight.get())
+                    .setLatency((long) latency.getMean(), l[0], l[1], l[2], l[3], latency.getMax());
+            final Histogram result = resultSize, request = requestSize;
+            if (result != null)
+                entry.setSizes(request.getValueAtPercentile(50), request.getMax(),
+                        result.getValueAtPercentile(50), result.getMax());
+            return entry;
+        }
+    }
+
+    private final int direction;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ActionStats>> actions =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, ActionStats>>();
+    private final AtomicInteger entries = new AtomicInteger();
+
+    private XmppMetrics(final int direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * @return metrics of calls this process served through ExecuteService, as a provider or plugin
+     */
+    public static XmppMetrics getIncoming() {
+        return incoming;
+    }
+
+    /**
+     * @return metrics of calls this process made through executeApi and callbackApi
+     */
+    public static XmppMetrics getOutgoing() {
+        return outgoing;
+    }
+
+    /**
+     * Turn recording on or off for the whole process, on by default, already recorded data is kept
+     */
+    public static void setEnabled(final boolean enabled) {
+        XmppMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Also record the parcelled size of each request and result Intent, off by default as it writes every Intent
+     * into a Parcel one more time
+     */
+    public static void setMeasureParcelSizes(final boolean measure) {
+        measureParcelSizes = measure;
+    }
+
+    /**
+     * Start timing a call, pass the returned stats and System.nanoTime to end once it completed
+     * @return null if recording is disabled
+     */
+    public ActionStats begin(final Intent data) {
+        if (!enabled)
+            return null;
+        final ActionStats stats = getOrCreate(data.getAction(), data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID));
+        stats.inFlight.incrementAndGet();
+        return stats;
+    }
+
+    /**
+     * @param stats as returned by begin, nothing is recorded if null
+     * @param startNanos System.nanoTime when the call started
+     */
+    public void end(final ActionStats stats, final long startNanos, final Intent data, final Intent result) {
+        if (stats == null)
+            return;
+        stats.latency.record(System.nanoTime() - startNanos);
+        stats.inFlight.decrementAndGet();
+        if (result == null || result.getIntExtra(XmppPluginCallbackApi.RESULT_CODE, XmppPluginCallbackApi.RESULT_CODE_ERROR)
+                == XmppPluginCallbackApi.RESULT_CODE_ERROR)
+            stats.errors.incrementAndGet();
+        if (measureParcelSizes && result != null)
+            stats.recordSizes(parcelSize(data), parcelSize(result));
+    }
+
+    private ActionStats getOrCreate(String action, final String accountJid) {
+        if (action == null)
+            action = NONE;
+        final String account = accountJid == null ? NONE : accountJid;
+        ConcurrentHashMap<String, ActionStats> accounts = actions.get(action);
+        ActionStats stats = accounts == null ? null : accounts.get(account);
+        if (stats != null)
+            return stats;
+        if (entries.get() >= MAX_ENTRIES && !OVERFLOW_ACTION.equals(action))
+            return getOrCreate(OVERFLOW_ACTION, null);
+        if (accounts == null) {
+            accounts = new ConcurrentHashMap<String, ActionStats>();
+            final ConcurrentHashMap<String, ActionStats> raced = actions.putIfAbsent(action, accounts);
+            if (raced != null)
+                accounts = raced;
+        }
+        stats = new ActionStats(action, accountJid);
+        final ActionStats raced = accounts.putIfAbsent(account, stats);
+        if (raced != null)
+            return raced;
+        entries.incrementAndGet();
+        return stats;
+    }
+
+    /**
+     * @return stats of action for accountJid, null if there were no such calls yet
+     */
+    public ActionStats getActionStats(final String action, final String accountJid) {
+        final ConcurrentHashMap<String, ActionStats> accounts = actions.get(action);
+        return accounts == null ? null : accounts.get(accountJid == null ? NONE : accountJid);
+    }
+
+    private void addEntries(final List<XmppStats.Entry> list) {
+        for (final ActionStats stats : getAllActionStats())
+            list.add(stats.toEntry(direction));
+    }
+
+    public List<ActionStats> getAllActionStats() {
+        final List<ActionStats> all = new ArrayList<ActionStats>(entries.get());
+        for (final Map<String, ActionStats> accounts : actions.values())
+            all.addAll(accounts.values());
+        return all;
+    }
+
+    /**
+     * Forget everything recorded in this direction, calls in flight are recorded in fresh stats
+     */
+    public void reset() {
+        actions.clear();
+        entries.set(0);
+    }
+
+    /**
+     * Count a finished pipe transfer, called by the ParcelFileDescriptorUtil pumps
+     */
+    static void recordTransfer(final long bytes, final long nanos) {
+        if (!enabled)
+            return;
+        pipeBytes.addAndGet(bytes);
+        pipeTransfers.record(nanos);
+    }
+
+    /**
+     * @return bytes moved by completed pipe transfers
+     */
+    public static long getPipeBytes() {
+        return pipeBytes.get();
+    }
+
+    /**
+     * @return durations of completed pipe transfers in nanoseconds
+     */
+    public static Histogram getPipeTransfers() {
+        return pipeTransfers;
+    }
+
+    /**
+     * @return snapshot of both directions and the pipes
+     */
+    public static XmppStats getStats() {
+        final List<XmppStats.Entry> list = new ArrayList<XmppStats.Entry>();
+        incoming.addEntries(list);
+        outgoing.addEntries(list);
+        final long[] pipes = pipeTransfers.getValuesAtPercentiles(50, 99);
+        return new XmppStats(list, pipeBytes.get(), pipeTransfers.getCount(), pipes[0], pipes[1], pipeTransfers.getMax());
+    }
+
+    private static int parcelSize(final Intent intent) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -27,11 +27,15 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import org.openintents.xmpp.IExecuteService;
 import org.openintents.xmpp.IXmppPluginCallback;
+import org.openintents.xmpp.XmppMessage;
 import org.openintents.xmpp.XmppPluginCallback;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
@@ -44,10 +48,13 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
     /**
      * see CHANGELOG.md
      */
-    public static final int API_VERSION = 1;
+    public static final int API_VERSION = 2;
 
     /* Intent extras */
     public static final String EXTRA_API_VERSION = "api_version";
+    public static final String EXTRA_OUTPUT_FILE = "output_file";
+    // boolean, ask for the stack trace in the XmppError of a failed call, for debugging only
+    public static final String EXTRA_INCLUDE_STACKTRACE = "include_stacktrace";
 
     /**
      * Notify callback of a new message, might be to your account, or from due to carbons or mam, or manual input
@@ -58,6 +65,11 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
      * String      EXTRA_MESSAGE_TO
      * String      EXTRA_MESSAGE_BODY
      * int         EXTRA_MESSAGE_STATUS
+     *
+     * or, to callbacks registered with EXTRA_API_VERSION 2 or later, all of the above in:
+     * XmppMessage EXTRA_MESSAGE
+     *
+     * read either form with XmppMessage.fromIntent
      */
     public static final String ACTION_NEW_MESSAGE = "org.openintents.xmpp.action.NEW_MESSAGE";
 
@@ -75,6 +87,7 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
     public static final String EXTRA_MESSAGE_TO = "message_to";
     public static final String EXTRA_MESSAGE_BODY = "message_body";
     public static final String EXTRA_MESSAGE_STATUS = "message_status";
+    public static final String EXTRA_MESSAGE = "message";
 
     /* Service Intent returns */
     public static final String RESULT_CODE = "result_code";
@@ -98,6 +111,9 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
     protected final Context context;
 
     protected final String accountJid, localPart, domain;
+    protected final StanzaFilter stanzaFilter;
+    // API_VERSION the peer registered with, 1 when it is not known, which every peer understands
+    protected final int apiVersion;
 
     // this is thread safe, we only need 1
     private static final AtomicInteger pipeIdGen = new AtomicInteger();
@@ -112,6 +128,21 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
 
     public XmppPluginCallbackApi(final Context context, final IXmppPluginCallback service,
                                  final String accountJid, final String localPart, final String domain) {
+        this(context, service, accountJid, localPart, domain, StanzaFilter.ALL);
+    }
+
+    public XmppPluginCallbackApi(final Context context, final IXmppPluginCallback service,
+                                 final String accountJid, final String localPart, final String domain,
+                                 final StanzaFilter stanzaFilter) {
+        this(context, service, accountJid, localPart, domain, stanzaFilter, 1);
+    }
+
+    /**
+     * @param apiVersion EXTRA_API_VERSION the callback was registered with
+     */
+    public XmppPluginCallbackApi(final Context context, final IXmppPluginCallback service,
+                                 final String accountJid, final String localPart, final String domain,
+                                 final StanzaFilter stanzaFilter, final int apiVersion) {
         if(context == null || service == null)
             throw new NullPointerException("context and service cannot be null");
         if(accountJid == null)
@@ -123,6 +154,21 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
         this.accountJid = accountJid;
         this.localPart = localPart;
         this.domain = domain;
+        this.stanzaFilter = stanzaFilter == null ? StanzaFilter.ALL : stanzaFilter;
+        this.apiVersion = apiVersion;
+    }
+
+    /**
+     * Create the callback described by an ACTION_REGISTER_PLUGIN_CALLBACK request, for providers
+     */
+    public static XmppPluginCallbackApi fromRegistration(final Context context, final IXmppPluginCallback service,
+                                                         final Intent data) {
+        return new XmppPluginCallbackApi(context, service,
+                data.getStringExtra(XmppServiceApi.EXTRA_ACCOUNT_JID),
+                data.getStringExtra(XmppServiceApi.EXTRA_JID_LOCAL_PART),
+                data.getStringExtra(XmppServiceApi.EXTRA_JID_DOMAIN),
+                StanzaFilter.fromIntent(data),
+                data.getIntExtra(EXTRA_API_VERSION, 1));
     }
 
     protected XmppPluginCallbackApi(final Context context, final IExecuteService service) {
@@ -131,14 +177,51 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
         this.context = context;
         this.executeService = service;
         this.accountJid = this.localPart = this.domain = null;
+        this.stanzaFilter = StanzaFilter.ALL;
+        this.apiVersion = 1;
+    }
+
+    /**
+     * @return EXTRA_API_VERSION the callback was registered with, 1 if it was not created by fromRegistration
+     */
+    public int getApiVersion() {
+        return apiVersion;
+    }
+
+    /**
+     * @return true if the callback can read XmppMessage.toIntent(true), see XmppMessage.toIntent(XmppPluginCallbackApi)
+     */
+    public boolean isCompactSupported() {
+        return XmppMessage.isCompactSupported(apiVersion);
     }
 
+    /**
+     * providers with many registered callbacks should use PluginCallbackRouter.lookup instead of calling this on each
+     */
     public boolean matches(final String accountJid, final String localPart, final String domain) {
         return (this.accountJid == null || this.accountJid.equals(accountJid)) &&
                 (this.localPart == null || this.localPart.equals(localPart)) &&
                 (this.domain == null || this.domain.equals(domain));
     }
 
+    /**
+     * @param peer conversation partner, may be null
+     */
+    public boolean matches(final String accountJid, final Jid peer) {
+        return peer == null ? matches(accountJid, null, null) : matches(accountJid, peer.getLocalPart(), peer.getDomain());
+    }
+
+    /**
+     * @param stanza the stanza about to be delivered, checked against the registered StanzaFilter
+     */
+    public boolean matchesFiltered(final String accountJid, final Jid peer, final StanzaFilter.Stanza stanza) {
+        return matches(accountJid, peer) && stanzaFilter.matches(stanza);
+    }
+
+    public StanzaFilter getStanzaFilter() {
+        return stanzaFilter;
+    }
+
     /**
      * Rightly throws ClassCastException if this is actually an instance of XmppServiceApi
      * @return
@@ -195,11 +278,37 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
         executeApiAsyncPrivate(new XmppAsyncTask(data, callback, is, os));
     }
 
+    /**
+     * Run executeApi on executor instead of the shared AsyncTask pool
+     * use XmppFuture.addCallback to choose the thread the result is delivered on, or block on get()
+     */
+    public XmppFuture executeApiFuture(final Intent data, final InputStream is, final OutputStream os, final Executor executor) {
+        return XmppFuture.submit(executor, new Callable<Intent>() {
+            @Override
+            public Intent call() {
+                return executeApi(data, is, os);
+            }
+        });
+    }
+
+    /**
+     * Run executeApi on executor, delivering the result to callback on callbackExecutor
+     */
+    public XmppFuture executeApiFuture(Intent data, InputStream is, OutputStream os, Executor executor,
+                                       IXmppCallback callback, Executor callbackExecutor) {
+        return executeApiFuture(data, is, os, executor).addCallback(callback, callbackExecutor);
+    }
+
     public Intent executeApi(Intent data, InputStream is, OutputStream os) {
         ParcelFileDescriptor input = null;
         try {
             if (is != null) {
-                input = ParcelFileDescriptorUtil.pipeFrom(is);
+                // regular files are handed over as they are, the remote side reads them without any pump
+                input = ParcelFileDescriptorUtil.dupFile(is);
+                if (input == null) {
+                    input = ParcelFileDescriptorUtil.pipeFrom(is);
+                    is = null; // closed by the pump
+                }
             }
 
             return executeApi(data, input, os);
@@ -207,6 +316,29 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
             return getErrorIntent(false, e);
         } finally {
             tryClose(input);
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(XmppPluginCallbackApi.TAG, "IOException when closing InputStream!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Like executeApi, but the remote side writes output straight into outputFile, no pipe and no pump involved
+     * the remote side must support EXTRA_OUTPUT_FILE
+     *
+     * @param input       may be null, pipe or regular file, not closed
+     * @param outputFile  regular file opened for writing, not closed
+     */
+    public Intent executeApiFile(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor outputFile) {
+        try {
+            data.putExtra(EXTRA_OUTPUT_FILE, outputFile);
+            return executeApi(data, input, null);
+        } finally {
+            data.removeExtra(EXTRA_OUTPUT_FILE);
         }
     }
 
@@ -214,6 +346,18 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
      * InputStream and OutputStreams are always closed after operating on them!
      */
     public Intent executeApi(Intent data, ParcelFileDescriptor input, OutputStream os) {
+        final XmppMetrics.ActionStats stats = XmppMetrics.getOutgoing().begin(data);
+        final long start = System.nanoTime();
+        Intent result = null;
+        try {
+            result = executeApiInternal(data, input, os);
+            return result;
+        } finally {
+            XmppMetrics.getOutgoing().end(stats, start, data, result);
+        }
+    }
+
+    private Intent executeApiInternal(Intent data, ParcelFileDescriptor input, OutputStream os) {
         ParcelFileDescriptor output = null;
         try {
             // always send version from client
@@ -221,13 +365,13 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
 
             Intent result;
 
-            Thread pumpThread = null;
+            Future<?> pump = null;
             int outputPipeId = 0;
 
             if (os != null) {
                 outputPipeId = pipeIdGen.incrementAndGet();
                 output = executeService.createOutputPipe(outputPipeId);
-                pumpThread = ParcelFileDescriptorUtil.pipeTo(os, output);
+                pump = ParcelFileDescriptorUtil.pipeTo(os, output);
             }
 
             // blocks until result is ready
@@ -239,8 +383,8 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
             result.setExtrasClassLoader(context.getClassLoader());
 
             //wait for ALL data being pumped from remote side
-            if (pumpThread != null) {
-                pumpThread.join();
+            if (pump != null) {
+                pump.get();
             }
 
             return result;
@@ -251,8 +395,8 @@ public class XmppPluginCallbackApi implements android.os.IInterface {
         }
     }
 
-    private void tryClose(final ParcelFileDescriptor p) {
-        // close() is required to halt the TransferThread
+    protected void tryClose(final ParcelFileDescriptor p) {
+        // close() is required to halt the Transfer
         if (p != null) {
             try {
                 p.close();
@@ -19,9 +19,25 @@ package org.openintents.xmpp.util;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
 
 import org.openintents.xmpp.*;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class XmppServiceApi extends XmppPluginCallbackApi {
 
     public static final String SERVICE_INTENT = "org.openintents.xmpp.IXmppService";
@@ -33,6 +49,11 @@ public class XmppServiceApi extends XmppPluginCallbackApi {
      * required extras:
      * int           EXTRA_API_VERSION           (always required)
      *
+     * optional extras:
+     * ParcelFileDescriptor EXTRA_OUTPUT_FILE    (regular file to write output to directly instead of the output pipe)
+     * int           EXTRA_PRIORITY              (PRIORITY_INTERACTIVE, PRIORITY_NORMAL (default) or PRIORITY_BULK,
+     *                                           honoured by providers scheduling requests)
+     *
      * returned extras:
      * int           RESULT_CODE                 (RESULT_CODE_ERROR, RESULT_CODE_SUCCESS or RESULT_CODE_USER_INTERACTION_REQUIRED)
      * XmppError     RESULT_ERROR                (if RESULT_CODE == RESULT_CODE_ERROR)
@@ -67,6 +88,39 @@ public class XmppServiceApi extends XmppPluginCallbackApi {
      */
     public static final String ACTION_SEND_RAW_XML = "org.openintents.xmpp.action.SEND_RAW_XML";
 
+    /**
+     * Send many raw XML elements using chosen account in one call, each one a single stanza or nonza,
+     * sent in the order given
+     *
+     * callbacks are not supported, use ACTION_SEND_RAW_XML for IQs that need a response
+     *
+     * required extras:
+     * String        EXTRA_ACCOUNT_JID           (JID of sending account)
+     * String[]      EXTRA_RAW_XML_BATCH         (raw XML elements to send)
+     *
+     * returned extras:
+     * int[]         RESULT_BATCH_CODES          (RESULT_CODE of each element, same order as EXTRA_RAW_XML_BATCH)
+     * XmppError[]   RESULT_BATCH_ERRORS         (RESULT_ERROR of each element, null for elements that succeeded)
+     */
+    public static final String ACTION_SEND_RAW_XML_BATCH = "org.openintents.xmpp.action.SEND_RAW_XML_BATCH";
+
+    /**
+     * Send a continuous sequence of raw XML elements read from the input stream using chosen account, each one a
+     * single stanza or nonza, sending each element as soon as it has been read completely
+     *
+     * providers should read the input with StanzaSplitter, clients can write it with RawXmlStream
+     *
+     * required extras:
+     * String        EXTRA_ACCOUNT_JID           (JID of sending account)
+     *
+     * required input:
+     * InputStream                               (UTF-8 raw XML elements, one after another)
+     *
+     * returned extras:
+     * int           RESULT_SENT_COUNT           (number of elements sent, also on error)
+     */
+    public static final String ACTION_SEND_RAW_XML_STREAM = "org.openintents.xmpp.action.SEND_RAW_XML_STREAM";
+
     /**
      * Register a plugin callback to receive messages matching a certain domain and/or local part
      *
@@ -76,6 +130,20 @@ public class XmppServiceApi extends XmppPluginCallbackApi {
      * optional extras:
      * String        EXTRA_JID_DOMAIN            (to match JID domain of conversation partner)
      * String        EXTRA_JID_LOCAL_PART        (to match JID localpart of conversation partner, cannot supply without domain)
+     * ParcelFileDescriptor EXTRA_MESSAGE_STREAM (write side of a pipe to deliver ACTION_NEW_MESSAGE over instead of
+     *                                            calling the callback once per message, see openMessageStream)
+     * String        EXTRA_FILTER_STANZA         (only stanzas with this element name: message, presence or iq)
+     * String[]      EXTRA_FILTER_TYPES          (only stanzas with one of these type attributes, normal matching
+     *                                            messages without one)
+     * String        EXTRA_FILTER_CHILD_NAME     (only stanzas with a direct child element of this name)
+     * String        EXTRA_FILTER_CHILD_NAMESPACE (only stanzas with a direct child element in this namespace)
+     * boolean       EXTRA_FILTER_HAS_BODY       (only messages with (true) or without (false) a body)
+     *
+     * providers compile the EXTRA_FILTER_* extras with StanzaFilter.fromIntent and evaluate them before calling the
+     * callback, see PluginCallbackRouter.lookupFiltered
+     *
+     * returned extras:
+     * boolean       RESULT_MESSAGE_STREAM       (true if messages will be delivered over EXTRA_MESSAGE_STREAM)
      *
      * Must use callback method and send in callback
      */
@@ -102,23 +170,123 @@ public class XmppServiceApi extends XmppPluginCallbackApi {
      */
     public static final String ACTION_GET_ACCOUNT_JID = "org.openintents.xmpp.action.GET_ACCOUNT_JID";
 
+    /**
+     * Get the XmppMetrics of the provider process, they name accounts and actions, so ExecuteService answers this
+     * itself only for the provider's own uid, the system, shell and root, like dump(), and passes it on to the
+     * provider's Execute for every other caller, to answer after its own permission check or reject
+     *
+     * returned extras:
+     * XmppStats     RESULT_STATS
+     */
+    public static final String ACTION_GET_STATS = "org.openintents.xmpp.action.GET_STATS";
+
     // extras:
     public static final String EXTRA_SUPPORTED_VERSIONS = "supported_versions";
     public static final String EXTRA_ACCOUNT_JID = "account_jid";
     public static final String EXTRA_RAW_XML = "raw_xml";
+    public static final String EXTRA_RAW_XML_BATCH = "raw_xml_batch";
     public static final String EXTRA_JID_DOMAIN = "jid_domain";
     public static final String EXTRA_JID_LOCAL_PART = "jid_local_part";
+    public static final String EXTRA_MESSAGE_STREAM = "message_stream";
+    public static final String EXTRA_PRIORITY = "priority";
+    public static final String EXTRA_FILTER_STANZA = "filter_stanza";
+    public static final String EXTRA_FILTER_TYPES = "filter_types";
+    public static final String EXTRA_FILTER_CHILD_NAME = "filter_child_name";
+    public static final String EXTRA_FILTER_CHILD_NAMESPACE = "filter_child_namespace";
+    public static final String EXTRA_FILTER_HAS_BODY = "filter_has_body";
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    // returned extras:
+    public static final String RESULT_BATCH_CODES = "batch_codes";
+    public static final String RESULT_BATCH_ERRORS = "batch_errors";
+    public static final String RESULT_SENT_COUNT = "sent_count";
+    public static final String RESULT_MESSAGE_STREAM = "message_streaming";
+    public static final String RESULT_STATS = "stats";
 
     private final XmppService xmppService;
 
+    private IqCorrelator iqCorrelator;
+    private OutboundCoalescer outboundCoalescer;
+
+    private final AtomicLong requestIdGen = new AtomicLong();
+    private final ConcurrentHashMap<Long, PipelinedRequest> pendingRequests = new ConcurrentHashMap<Long, PipelinedRequest>();
+
+    private final IXmppResultCallback resultCallback = new IXmppResultCallback.Stub() {
+        @Override
+        public void onResult(final long requestId, final Intent result) {
+            final PipelinedRequest request = pendingRequests.remove(requestId);
+            if (request == null)
+                return; // cancelled
+            if (result == null) {
+                request.complete(XmppUtils.getError(XmppError.GENERIC_ERROR, "provider sent no result"));
+                return;
+            }
+            result.setExtrasClassLoader(context.getClassLoader());
+            request.result = result;
+            request.arrive();
+        }
+    };
+
+    private final IBinder.DeathRecipient providerDeath = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            // results of pipelined requests can never arrive now
+            failPendingRequests(XmppError.REMOTE_DIED, "provider died");
+        }
+    };
+
+    private void failPendingRequests(final int errorId, final String message) {
+        for (final Long requestId : pendingRequests.keySet()) {
+            final PipelinedRequest request = pendingRequests.remove(requestId);
+            if (request != null)
+                request.complete(XmppUtils.getError(errorId, message));
+        }
+    }
+
     public XmppServiceApi(Context context, XmppService service) {
         super(context, service);
         this.xmppService = service;
+        linkToProviderDeath();
     }
 
     public XmppServiceApi(Context context, IXmppService service) {
         super(context, XmppService.wrap(service));
         this.xmppService = (XmppService) super.executeService; // we know this is what we sent in above
+        linkToProviderDeath();
+    }
+
+    private void linkToProviderDeath() {
+        try {
+            xmppService.asBinder().linkToDeath(providerDeath, 0);
+        } catch (RemoteException e) {
+            // already dead, every call will fail right away
+        }
+    }
+
+    /**
+     * Stop watching the provider, which otherwise keeps this and its Context reachable until the provider process
+     * dies, call once the api is no longer used, pipelined requests still pending fail
+     */
+    public void close() {
+        try {
+            xmppService.asBinder().unlinkToDeath(providerDeath, 0);
+        } catch (NoSuchElementException ignored) {
+            // never linked, or already unlinked by its death
+        }
+        if (isAlive())
+            failPendingRequests(XmppError.CLIENT_SIDE_ERROR, "XmppServiceApi closed");
+        else
+            failPendingRequests(XmppError.REMOTE_DIED, "provider died");
+    }
+
+    /**
+     * @return false once the provider process died, a new XmppServiceApi must be bound then
+     */
+    public boolean isAlive() {
+        return xmppService.asBinder().isBinderAlive();
     }
 
     public XmppService getXmppService() {
@@ -143,7 +311,279 @@ public class XmppServiceApi extends XmppPluginCallbackApi {
         executeApiAsyncPrivate(new PluginXmppAsyncTask(data, callback, pluginCallback));
     }
 
+    /**
+     * Run callbackApi on executor instead of the shared AsyncTask pool, see executeApiFuture
+     */
+    public XmppFuture callbackApiFuture(final Intent data, final IXmppPluginCallback pluginCallback, final Executor executor) {
+        return XmppFuture.submit(executor, new Callable<Intent>() {
+            @Override
+            public Intent call() {
+                return callbackApi(data, pluginCallback);
+            }
+        });
+    }
+
+    /**
+     * Run callbackApi on executor, delivering the result to callback on callbackExecutor
+     */
+    public XmppFuture callbackApiFuture(Intent data, IXmppPluginCallback pluginCallback, Executor executor,
+                                        IXmppCallback callback, Executor callbackExecutor) {
+        return callbackApiFuture(data, pluginCallback, executor).addCallback(callback, callbackExecutor);
+    }
+
+    public void sendRawXmlBatchAsync(String accountJid, String[] rawXml, IXmppCallback callback) {
+        executeApiAsyncPrivate(new XmppAsyncTask(getSendRawXmlBatchIntent(accountJid, rawXml), callback));
+    }
+
+    /**
+     * Send all rawXml elements in one call, see ACTION_SEND_RAW_XML_BATCH
+     * use XmppUtils.getBatchErrors to inspect the per element results
+     */
+    public Intent sendRawXmlBatch(String accountJid, String[] rawXml) {
+        return executeApi(getSendRawXmlBatchIntent(accountJid, rawXml), (ParcelFileDescriptor) null, null);
+    }
+
+    private static Intent getSendRawXmlBatchIntent(final String accountJid, final String[] rawXml) {
+        final Intent data = new Intent(ACTION_SEND_RAW_XML_BATCH);
+        data.putExtra(EXTRA_ACCOUNT_JID, accountJid);
+        data.putExtra(EXTRA_RAW_XML_BATCH, rawXml);
+        return data;
+    }
+
+    /**
+     * Send all raw XML elements read from is in one call, see ACTION_SEND_RAW_XML_STREAM
+     * blocks until is has been read completely
+     */
+    public Intent sendRawXmlStream(String accountJid, InputStream is) {
+        return executeApi(getSendRawXmlStreamIntent(accountJid), is, null);
+    }
+
+    /**
+     * Open a stream to send raw XML elements over as they are produced, see ACTION_SEND_RAW_XML_STREAM
+     * callback is called with the result once the returned RawXmlStream has been closed
+     */
+    public RawXmlStream openRawXmlStream(String accountJid, IXmppCallback callback) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        executeApiAsyncPrivate(new RawXmlStreamAsyncTask(getSendRawXmlStreamIntent(accountJid), callback, pipe[0]));
+        return new RawXmlStream(pipe[1]);
+    }
+
+    private static Intent getSendRawXmlStreamIntent(final String accountJid) {
+        final Intent data = new Intent(ACTION_SEND_RAW_XML_STREAM);
+        data.putExtra(EXTRA_ACCOUNT_JID, accountJid);
+        return data;
+    }
+
+    private class RawXmlStreamAsyncTask extends XmppAsyncTask {
+        final ParcelFileDescriptor input;
+
+        RawXmlStreamAsyncTask(final Intent data, final IXmppCallback callback, final ParcelFileDescriptor input) {
+            super(data, callback);
+            this.input = input;
+        }
+
+        @Override
+        protected Intent doInBackground(Void... unused) {
+            try {
+                // the read side is handed straight to the provider, no pump needed
+                return executeApi(data, input, null);
+            } finally {
+                tryClose(input);
+            }
+        }
+    }
+
+    /**
+     * Register pluginCallback with ACTION_REGISTER_PLUGIN_CALLBACK, asking for new messages to be streamed over a pipe
+     *
+     * if the provider does not support streaming, or registering fails, the returned reader is not streaming,
+     * see MessageStreamReader.isStreaming and MessageStreamReader.getResult
+     */
+    public MessageStreamReader openMessageStream(Intent data, IXmppPluginCallback pluginCallback) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final Intent result;
+        try {
+            data.putExtra(EXTRA_MESSAGE_STREAM, pipe[1]);
+            result = callbackApi(data, pluginCallback);
+        } finally {
+            // the provider holds its own copy now, ours must be closed to see end of stream when it goes away
+            data.removeExtra(EXTRA_MESSAGE_STREAM);
+            tryClose(pipe[1]);
+        }
+        final MessageStreamReader reader = new MessageStreamReader(result, pipe[0]);
+        if (!reader.isStreaming())
+            reader.close();
+        return reader;
+    }
+
+    private class PipelinedRequest extends XmppFuture {
+        final long requestId;
+        // result, and the end of output if there is any
+        final AtomicInteger remaining = new AtomicInteger(1);
+        volatile Intent result;
+
+        PipelinedRequest(final long requestId) {
+            this.requestId = requestId;
+        }
+
+        void arrive() {
+            if (remaining.decrementAndGet() == 0)
+                complete(result);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            pendingRequests.remove(requestId);
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Tells the request once all output has been pumped, so it completes no sooner than executeApi would
+     */
+    private static class PumpedOutputStream extends FilterOutputStream {
+        final PipelinedRequest request;
+        boolean closed;
+
+        PumpedOutputStream(final OutputStream out, final PipelinedRequest request) {
+            super(out);
+            this.request = request;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                request.arrive();
+            }
+        }
+    }
+
+    /**
+     * Like executeApi, but returns as soon as the request has been handed to the provider instead of holding a
+     * provider binder thread until it completes, many requests can be in flight at once and complete in any order
+     *
+     * the provider must implement IXmppService.executeAsync, older providers drop the request, so use
+     * XmppFuture.get with a timeout when talking to providers that might be old
+     *
+     * InputStream and OutputStreams are always closed after operating on them!
+     */
+    public XmppFuture executeApiPipelined(Intent data, InputStream is, OutputStream os) {
+        final long requestId = requestIdGen.incrementAndGet();
+        final PipelinedRequest request = new PipelinedRequest(requestId);
+        ParcelFileDescriptor input = null, output = null;
+        try {
+            // always send version from client
+            data.putExtra(EXTRA_API_VERSION, XmppServiceApi.API_VERSION);
+
+            if (is != null) {
+                input = ParcelFileDescriptorUtil.dupFile(is);
+                if (input == null) {
+                    input = ParcelFileDescriptorUtil.pipeFrom(is);
+                    is = null; // closed by the pump
+                }
+            }
+
+            if (os != null) {
+                final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                request.remaining.incrementAndGet();
+                output = pipe[1];
+                ParcelFileDescriptorUtil.pipeTo(new PumpedOutputStream(os, request), pipe[0]);
+            }
+
+            pendingRequests.put(requestId, request);
+            // returns right away, resultCallback gets the result
+            xmppService.executeAsync(requestId, data, input, output, resultCallback);
+        } catch (Exception e) {
+            pendingRequests.remove(requestId);
+            request.complete(getErrorIntent(false, e));
+        } finally {
+            // the provider holds its own copies now
+            tryClose(input);
+            tryClose(output);
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(XmppPluginCallbackApi.TAG, "IOException when closing InputStream!", e);
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @return number of executeApiPipelined requests still waiting for their result
+     */
+    public int getPendingRequestCount() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * Send an IQ with ACTION_SEND_RAW_XML and get its response, matched on stanza id, see IqCorrelator.sendIq
+     */
+    public XmppFuture sendIq(String accountJid, String iqXml, long timeout, TimeUnit unit) {
+        return getIqCorrelator().sendIq(accountJid, iqXml, timeout, unit);
+    }
+
+    public synchronized IqCorrelator getIqCorrelator() {
+        if (iqCorrelator == null)
+            iqCorrelator = new IqCorrelator(this);
+        return iqCorrelator;
+    }
+
+    /**
+     * Send rawXml batched with other sends for accountJid and paced per account, see OutboundCoalescer
+     */
+    public XmppFuture sendRawXmlCoalesced(String accountJid, String rawXml) {
+        return getOutboundCoalescer().send(accountJid, rawXml);
+    }
+
+    public synchronized OutboundCoalescer getOutboundCoalescer() {
+        if (outboundCoalescer == null)
+            outboundCoalescer = new OutboundCoalescer(this);
+        return outboundCoalescer;
+    }
+
+    /**
+     * Use outboundCoalescer for sendRawXmlCoalesced, to change its window or rate limit
+     */
+    public synchronized void setOutboundCoalescer(OutboundCoalescer outboundCoalescer) {
+        this.outboundCoalescer = outboundCoalescer;
+    }
+
+    /**
+     * @return metrics of the provider process, see ACTION_GET_STATS, null if it failed or the provider is too old
+     */
+    public XmppStats getStats() {
+        final Intent result = executeApi(new Intent(ACTION_GET_STATS), (InputStream) null, null);
+        if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) != RESULT_CODE_SUCCESS)
+            return null;
+        return result.getParcelableExtra(RESULT_STATS);
+    }
+
     public Intent callbackApi(Intent data, IXmppPluginCallback pluginCallback) {
+        final XmppMetrics.ActionStats stats = XmppMetrics.getOutgoing().begin(data);
+        final long start = System.nanoTime();
+        Intent result = null;
+        try {
+            result = callbackApiInternal(data, pluginCallback);
+            return result;
+        } finally {
+            XmppMetrics.getOutgoing().end(stats, start, data, result);
+        }
+    }
+
+    private Intent callbackApiInternal(Intent data, IXmppPluginCallback pluginCallback) {
         try {
             // always send version from client
             data.putExtra(EXTRA_API_VERSION, XmppServiceApi.API_VERSION);
@@ -20,9 +20,19 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
 
 import org.openintents.xmpp.IXmppService;
+import org.openintents.xmpp.XmppError;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class XmppServiceConnection {
 
@@ -33,13 +43,41 @@ public class XmppServiceConnection {
         public void onError(Exception e);
     }
 
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 500;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60 * 1000;
+
     private Context context;
 
-    private XmppServiceApi serviceApi;
+    private volatile XmppServiceApi serviceApi;
     private String mProviderPackageName;
 
     private OnBound mOnBoundListener;
 
+    private volatile boolean autoReconnect;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    private Handler handler;
+
+    // requests issued while disconnected, guarded by itself
+    private final Queue<QueuedRequest> queue = new ArrayDeque<QueuedRequest>();
+    private boolean flushing;
+    private Executor flushExecutor;
+
+    private static class QueuedRequest {
+        final Intent data;
+        final InputStream is;
+        final OutputStream os;
+        final XmppFuture future = new XmppFuture();
+
+        QueuedRequest(final Intent data, final InputStream is, final OutputStream os) {
+            this.data = data;
+            this.is = is;
+            this.os = os;
+        }
+    }
+
     /**
      * Create new connection
      *
@@ -70,6 +108,120 @@ public class XmppServiceConnection {
         return serviceApi;
     }
 
+    /**
+     * Keep rebinding with exponential backoff whenever the provider goes away, for example when it is updated
+     * or killed, queueing requests made with executeApiFuture in the meantime
+     *
+     * @param queueCapacity most requests to hold while disconnected, further ones fail with QUEUE_FULL
+     */
+    public void setAutoReconnect(final boolean autoReconnect, final int queueCapacity) {
+        synchronized (queue) {
+            this.autoReconnect = autoReconnect;
+            this.queueCapacity = queueCapacity;
+        }
+        if (!autoReconnect)
+            getHandler().removeCallbacks(rebind);
+    }
+
+    /**
+     * Execute right away when connected, otherwise queue the request until the connection is back, queued requests
+     * are run one after another in the order they were made, on a connection thread rather than executor
+     *
+     * without auto reconnect this fails right away when not connected
+     */
+    public XmppFuture executeApiFuture(final Intent data, final InputStream is, final OutputStream os, final Executor executor) {
+        final XmppServiceApi api;
+        synchronized (queue) {
+            api = serviceApi;
+            if (api == null && !autoReconnect)
+                return failed(XmppError.CLIENT_SIDE_ERROR, "not bound to provider");
+            if (api == null || flushing || !queue.isEmpty()) {
+                // behind earlier queued requests, to keep them in order
+                if (queue.size() >= queueCapacity)
+                    return failed(XmppError.QUEUE_FULL, "too many requests queued while disconnected");
+                final QueuedRequest request = new QueuedRequest(data, is, os);
+                queue.add(request);
+                if (api != null)
+                    flush();
+                return request.future;
+            }
+        }
+        return api.executeApiFuture(data, is, os, executor);
+    }
+
+    /**
+     * @return number of requests waiting for the connection
+     */
+    public int getQueuedRequestCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    private static XmppFuture failed(final int errorId, final String message) {
+        final XmppFuture future = new XmppFuture();
+        future.complete(XmppUtils.getError(errorId, message));
+        return future;
+    }
+
+    private void flush() {
+        synchronized (queue) {
+            if (flushing || queue.isEmpty())
+                return;
+            flushing = true;
+            if (flushExecutor == null)
+                flushExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "XMPP API queued requests");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        flushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final XmppServiceApi api;
+                    final QueuedRequest request;
+                    synchronized (queue) {
+                        api = serviceApi;
+                        if (api == null || queue.isEmpty()) {
+                            // the rest waits for the next onServiceConnected
+                            flushing = false;
+                            return;
+                        }
+                        request = queue.poll();
+                    }
+                    request.future.complete(api.executeApi(request.data, request.is, request.os));
+                }
+            }
+        });
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null)
+            handler = new Handler(context.getMainLooper());
+        return handler;
+    }
+
+    private final Runnable rebind = new Runnable() {
+        @Override
+        public void run() {
+            if (serviceApi != null || !autoReconnect)
+                return;
+            try {
+                context.getApplicationContext().unbindService(serviceConnection);
+            } catch (IllegalArgumentException ignored) {
+                // binding already gone
+            }
+            bindToService();
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            getHandler().postDelayed(this, reconnectDelay);
+        }
+    };
+
     public boolean isBound() {
         return (serviceApi != null);
     }
@@ -77,16 +229,31 @@ public class XmppServiceConnection {
     private ServiceConnection serviceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName name, IBinder service) {
             serviceApi = new XmppServiceApi(context, IXmppService.Stub.asInterface(service));
+            getHandler().removeCallbacks(rebind);
+            reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+            flush();
             if (mOnBoundListener != null) {
                 mOnBoundListener.onBound(serviceApi);
             }
         }
 
         public void onServiceDisconnected(ComponentName name) {
-            serviceApi = null;
+            closeApi();
+            if (autoReconnect) {
+                // the system usually reconnects on its own once the provider restarts, rebind if it does not
+                getHandler().removeCallbacks(rebind);
+                getHandler().postDelayed(rebind, reconnectDelay);
+            }
         }
     };
 
+    private void closeApi() {
+        final XmppServiceApi api = serviceApi;
+        serviceApi = null;
+        if (api != null)
+            api.close();
+    }
+
     /**
      * If not already bound, bind to service!
      *
@@ -118,7 +285,15 @@ public class XmppServiceConnection {
     }
 
     public void unbindFromService() {
+        setAutoReconnect(false, queueCapacity);
         context.getApplicationContext().unbindService(serviceConnection);
+        closeApi();
+        // nothing will ever run what is still queued
+        synchronized (queue) {
+            QueuedRequest request;
+            while ((request = queue.poll()) != null)
+                request.future.complete(XmppUtils.getError(XmppError.CLIENT_SIDE_ERROR, "unbound from provider"));
+        }
     }
 
 }
@@ -16,19 +16,37 @@
 
 package org.openintents.xmpp.util;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ResolveInfo;
+import android.os.DeadObjectException;
+import android.os.Parcelable;
 import org.openintents.xmpp.XmppError;
 
 import static org.openintents.xmpp.util.XmppPluginCallbackApi.*;
 
 public class XmppUtils {
 
+    private static volatile boolean includeStacktraces = false;
+
+    /**
+     * Include stack traces in every exception error this process returns, not only when the request asked for them
+     * with EXTRA_INCLUDE_STACKTRACE, off by default as rendering them costs far more than the rest of the error
+     */
+    public static void setIncludeStacktraces(final boolean include) {
+        includeStacktraces = include;
+    }
+
+    public static boolean isIncludeStacktraces() {
+        return includeStacktraces;
+    }
+
     public static boolean isAvailable(Context context) {
         Intent intent = new Intent(XmppServiceApi.SERVICE_INTENT);
         List<ResolveInfo> resInfo = context.getPackageManager().queryIntentServices(intent, 0);
@@ -42,18 +60,101 @@ public class XmppUtils {
     }
 
     public static Intent getError(final int errorId, final String message) {
+        return getError(new XmppError(errorId, message));
+    }
+
+    /**
+     * @return error result with the shared XmppError of errorId, for failures that need no message of their own
+     */
+    public static Intent getError(final int errorId) {
+        return getError(XmppError.getShared(errorId));
+    }
+
+    private static Intent getError(final XmppError error) {
         final Intent result = new Intent();
-        final XmppError error = new XmppError(errorId, message);
         result.putExtra(RESULT_ERROR, error);
         result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
         return result;
     }
 
-    public static Intent getExceptionError(final Exception e) {
-        final Intent result = new Intent();
-        result.putExtra(RESULT_ERROR, new XmppError(XmppError.GENERIC_ERROR, e));
-        result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+    /**
+     * Combine the results of each element of an ACTION_SEND_RAW_XML_BATCH into the single result returned for it
+     * @param results one result per element, in the same order as EXTRA_RAW_XML_BATCH
+     */
+    public static Intent getBatchResult(final Intent[] results) {
+        final int[] codes = new int[results.length];
+        final XmppError[] errors = new XmppError[results.length];
+        for (int i = 0; i < results.length; ++i) {
+            codes[i] = results[i].getIntExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            if (codes[i] == RESULT_CODE_ERROR)
+                errors[i] = results[i].getParcelableExtra(RESULT_ERROR);
+        }
+        final Intent result = getSuccess();
+        result.putExtra(XmppServiceApi.RESULT_BATCH_CODES, codes);
+        result.putExtra(XmppServiceApi.RESULT_BATCH_ERRORS, errors);
         return result;
     }
 
+    /**
+     * @return the XmppError of each element of an ACTION_SEND_RAW_XML_BATCH result, null entries for elements that
+     * succeeded, or null if result is not a successful batch result
+     */
+    public static XmppError[] getBatchErrors(final Intent result) {
+        final Parcelable[] parcelables = result.getParcelableArrayExtra(XmppServiceApi.RESULT_BATCH_ERRORS);
+        if (parcelables == null)
+            return null;
+        // unparcelled arrays are always Parcelable[], never XmppError[]
+        final XmppError[] errors = new XmppError[parcelables.length];
+        for (int i = 0; i < parcelables.length; ++i)
+            errors[i] = (XmppError) parcelables[i];
+        return errors;
+    }
+
+    /**
+     * Error result for e, with the errorId from getErrorId and a stack trace only if setIncludeStacktraces is on
+     */
+    public static Intent getExceptionError(final Exception e) {
+        return getExceptionError(e, includeStacktraces);
+    }
+
+    /**
+     * Error result for e raised while serving data, with a stack trace if data asked for it or
+     * setIncludeStacktraces is on
+     */
+    public static Intent getExceptionError(final Intent data, final Exception e) {
+        return getExceptionError(e, includeStacktraces
+                || data != null && data.getBooleanExtra(EXTRA_INCLUDE_STACKTRACE, false));
+    }
+
+    private static Intent getExceptionError(final Exception e, final boolean stacktrace) {
+        final String message = e.getMessage();
+        final XmppError error = new XmppError(getErrorId(e), message == null ? e.getClass().getName() : message);
+        if (stacktrace)
+            error.setStacktrace(e);
+        return getError(error);
+    }
+
+    /**
+     * @return the XmppError errorId that describes t best, GENERIC_ERROR if none does
+     */
+    public static int getErrorId(Throwable t) {
+        if (t instanceof ExecutionException && t.getCause() != null)
+            t = t.getCause();
+        if (t instanceof DeadObjectException)
+            return XmppError.REMOTE_DIED;
+        if (t instanceof TimeoutException)
+            return XmppError.TIMEOUT;
+        if (t instanceof RejectedExecutionException)
+            return XmppError.QUEUE_FULL;
+        if (t instanceof SecurityException)
+            return XmppError.NOT_AUTHORIZED;
+        if (t instanceof CancellationException || t instanceof InterruptedException)
+            return XmppError.CANCELLED;
+        if (t instanceof IllegalArgumentException)
+            return XmppError.BAD_REQUEST;
+        if (t instanceof UnsupportedOperationException)
+            return XmppError.NOT_SUPPORTED;
+        return XmppError.GENERIC_ERROR;
+    }
+
 }